@@ -0,0 +1,163 @@
+package crowdchat;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Measure how fast "Linker.BasicLinker" delivers a burst of messages to
+ * 50 and 500 clients (called back through RMI or reached through a
+ * "SocketServer" on localhost), one call per message ("writeMessage") or 
+ * one call per batch ("writeMessages").
+ */
+public class DeliveryBench
+{
+    // Constants.
+    private static final int[] RECIPIENTS = { 50, 500 };
+    // Messages received by all the clients together, per run.
+    private static final int DELIVERIES = 100_000;
+    private static final long TIMEOUT_SECONDS = 300;
+    // Longer than any run (the clients do not renew their lease).
+    private static final long LEASE_DURATION = 3_600_000;
+
+    public static void main(String[] args) throws Exception
+    {
+        PrintStream out = System.out;
+        // Hide the "Client joining" lines of the linker (and its errors when
+        // the clients of a run are closed).
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+
+        out.println("transport  recipients  batching   messages/s   deliveries/s");
+
+        for (boolean useSocket : new boolean[] { false, true })
+        {
+            for (int recipients : RECIPIENTS)
+            {
+                // Warm up.
+                run(recipients, 1, 0, useSocket);
+                run(recipients, Linker.BasicLinker.DEFAULT_BATCH_SIZE,
+                        Linker.BasicLinker.DEFAULT_BATCH_WINDOW, useSocket);
+
+                print(out, useSocket, recipients, "none", run(recipients, 1, 0, useSocket));
+                print(out, useSocket, recipients, "on", 
+                        run(recipients, Linker.BasicLinker.DEFAULT_BATCH_SIZE,
+                            Linker.BasicLinker.DEFAULT_BATCH_WINDOW, useSocket));
+            }
+        }
+
+        System.exit(0);
+    }
+
+    private static void print(PrintStream out, boolean useSocket, int recipients, 
+            String batching, double messagesPerSecond)
+    {
+        out.printf("%-9s %11d  %-8s %11.0f %14.0f%n", useSocket ? "socket" : "rmi", 
+                recipients, batching, messagesPerSecond, messagesPerSecond * recipients);
+    }
+
+    /**
+     * Send a burst of messages and return the number of messages per second
+     * received by every client (each one with its own socket if useSocket).
+     */
+    private static double run(int recipients, int batchSize, long batchWindow, 
+            boolean useSocket) throws Exception
+    {
+        int messages = DELIVERIES / recipients;
+        Linker.BasicLinker linker = new Linker.BasicLinker(messages,
+                Recipient.OverflowPolicy.DROP_OLDEST, batchSize, batchWindow);
+        linker.setLeaseDuration(LEASE_DURATION);
+        SocketServer server = new SocketServer(linker, 0);
+        server.start();
+        CountDownLatch received = new CountDownLatch(recipients * messages);
+        ArrayList<CountingClient> clients = new ArrayList<>();
+        ArrayList<SocketLinker> sockets = new ArrayList<>();
+
+        for (int i = 0; i < recipients; i++)
+        {
+            CountingClient client = new CountingClient(received);
+            clients.add(client);
+
+            if (useSocket)
+            {
+                SocketLinker socket = new SocketLinker("localhost", server.getPort());
+                sockets.add(socket);
+                socket.connect(Linker.DEFAULT_ROOM, "user" + i, client);
+            }
+            else
+            {
+                linker.connect(Linker.DEFAULT_ROOM, "user" + i, 
+                        (Client) UnicastRemoteObject.exportObject(client, 0));
+            }
+        }
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < messages; i++)
+        {
+            linker.addMessage(Linker.DEFAULT_ROOM, "user" + (i % recipients), 
+                    "Message number " + i);
+        }
+
+        if (! received.await(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+        {
+            throw new IllegalStateException("Messages not delivered.");
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        if (useSocket)
+        {
+            sockets.forEach(SocketLinker::close);
+        }
+        else
+        {
+            for (CountingClient client : clients)
+            {
+                UnicastRemoteObject.unexportObject(client, true);
+            }
+        }
+
+        server.close();
+
+        return messages * 1e9 / elapsed;
+    }
+
+
+    private static class CountingClient implements Client
+    {
+        private final CountDownLatch mReceived;
+
+        public CountingClient(CountDownLatch received)
+        {
+            mReceived = received;
+        }
+
+        @Override
+        public void writeMessage(Linker.Message message) throws RemoteException
+        {
+            mReceived.countDown();
+        }
+
+        @Override
+        public void writeMessages(ArrayList<Linker.Message> messages) throws RemoteException
+        {
+            messages.forEach(m -> mReceived.countDown());
+        }
+
+        @Override
+        public void notifyDisconnected(String name) throws RemoteException
+        {
+        }
+
+        @Override
+        public void notifyConnected(String name) throws RemoteException
+        {
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package crowdchat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Load a running server with headless bots ("Client.BasicClient" without
+ * the GUI), and report the throughput and the delivery latency (from the
+ * message sent by a bot to its display by every bot).
+ * The bots join at "--join-rate" per second, then send "--message-rate"
+ * messages per second (all together) of "--message-size" characters for
+ * "--duration" seconds. All the bots run in this JVM, so the latencies
+ * are measured with the same clock.
+ */
+public class LoadDriver
+{
+    // Constants.
+    private static final int JOIN_THREADS = 16;
+    private static final long TICK_MILLIS = 10;
+    // Longest wait for the last messages to be delivered.
+    private static final long DRAIN_SECONDS = 30;
+
+    public static void main(String[] args) throws Exception
+    {
+        String host = Server.parseArgs(args);
+        boolean useSocket = Server.parseOption(args, "transport", "rmi").equals("socket");
+        String room = Server.parseOption(args, "room", "load");
+        int bots = Integer.parseInt(Server.parseOption(args, "bots", "100"));
+        double joinRate = Double.parseDouble(Server.parseOption(args, "join-rate", "50"));
+        double messageRate = Double.parseDouble(Server.parseOption(args, "message-rate", "100"));
+        int messageSize = Integer.parseInt(Server.parseOption(args, "message-size", "100"));
+        long duration = Long.parseLong(Server.parseOption(args, "duration", "30"));
+
+        // Only the messages of this run are measured (not the history).
+        String run = Long.toHexString(System.nanoTime() & 0xFFFFFF);
+        Stats stats = new Stats();
+        ArrayList<Bot> joined = join(host, room, useSocket, bots, joinRate, run, stats);
+
+        if (joined.isEmpty())
+        {
+            System.err.println("Error: no bot could join.");
+            System.exit(-1);
+        }
+
+        long start = System.nanoTime();
+        long sent = send(joined, messageRate, duration, messageSize, run);
+        long expected = sent * joined.size();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_SECONDS);
+
+        while (stats.mDelivered.get() < expected && System.nanoTime() < deadline)
+        {
+            Thread.sleep(TICK_MILLIS);
+        }
+
+        long elapsed = stats.mLastDelivery.get() - start;
+        long[] latencies = latencies(joined);
+
+        System.out.printf("bots joined     %d / %d%n", joined.size(), bots);
+        System.out.printf("messages sent   %d (%.0f/s)%n", sent, sent / (double) duration);
+        System.out.printf("deliveries      %d / %d (%.0f/s)%n", stats.mDelivered.get(),
+                expected, stats.mDelivered.get() * 1e9 / Math.max(1, elapsed));
+        System.out.printf("errors          %d%n", stats.mErrors.get());
+        System.out.printf("latency (ms)    p50 %.2f  p99 %.2f  p999 %.2f  max %.2f%n",
+                percentile(latencies, 0.5), percentile(latencies, 0.99),
+                percentile(latencies, 0.999), percentile(latencies, 1));
+
+        // Free the names (without waiting for the leases).
+        ExecutorService leaving = Executors.newFixedThreadPool(JOIN_THREADS);
+        joined.forEach(bot -> leaving.execute(bot.mClient::disconnect));
+        leaving.shutdown();
+        leaving.awaitTermination(DRAIN_SECONDS, TimeUnit.SECONDS);
+        System.exit(0);
+    }
+
+    /**
+     * Connect the bots at joinRate per second, and return the ones connected.
+     */
+    private static ArrayList<Bot> join(String host, String room, boolean useSocket,
+            int bots, double joinRate, String run, Stats stats) throws InterruptedException
+    {
+        ScheduledExecutorService joining = Executors.newScheduledThreadPool(JOIN_THREADS);
+        CountDownLatch done = new CountDownLatch(bots);
+        List<Bot> joined = Collections.synchronizedList(new ArrayList<>());
+
+        for (int i = 0; i < bots; i++)
+        {
+            String name = "bot" + i + "-" + run;
+            joining.schedule(
+                    () ->
+                    {
+                        try
+                        {
+                            // Without history cache (on disk, shared by the bots).
+                            Bot bot = new Bot(
+                                    new Client.BasicClient(host, room, useSocket, false),
+                                    run, stats);
+
+                            if (bot.mClient.connect(name))
+                            {
+                                joined.add(bot);
+                            }
+                        }
+                        finally
+                        {
+                            done.countDown();
+                        }
+                    },
+                    (long) (i * 1e9 / joinRate), TimeUnit.NANOSECONDS
+            );
+        }
+
+        done.await();
+        joining.shutdown();
+        return new ArrayList<>(joined);
+    }
+
+    /**
+     * Send messageRate messages per second (by each bot in turn) for
+     * duration seconds, and return the number sent.
+     */
+    private static long send(ArrayList<Bot> bots, double messageRate, long duration,
+            int messageSize, String run) throws InterruptedException
+    {
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(duration);
+        long sent = 0;
+        long now;
+
+        while ((now = System.nanoTime()) < end)
+        {
+            long due = (long) ((now - start) * messageRate / 1e9);
+
+            for (; sent < due; sent++)
+            {
+                bots.get((int) (sent % bots.size())).send(content(run, messageSize));
+            }
+
+            Thread.sleep(TICK_MILLIS);
+        }
+
+        return sent;
+    }
+
+    /**
+     * Return a message of size characters (at least its header): the run,
+     * and the time it is sent.
+     */
+    private static String content(String run, int size)
+    {
+        StringBuilder content = new StringBuilder(size)
+            .append(run).append(' ').append(System.nanoTime()).append(' ');
+
+        while (content.length() < size)
+        {
+            content.append('x');
+        }
+
+        return content.toString();
+    }
+
+    /**
+     * Return the latencies recorded by every bot, sorted.
+     */
+    private static long[] latencies(ArrayList<Bot> bots)
+    {
+        ArrayList<long[]> recorded = new ArrayList<>();
+        int count = 0;
+
+        for (Bot bot : bots)
+        {
+            synchronized (bot)
+            {
+                recorded.add(Arrays.copyOf(bot.mLatencies, bot.mLatencyCount));
+                count += bot.mLatencyCount;
+            }
+        }
+
+        long[] latencies = new long[count];
+        int offset = 0;
+
+        for (long[] part : recorded)
+        {
+            System.arraycopy(part, 0, latencies, offset, part.length);
+            offset += part.length;
+        }
+
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    /**
+     * Return the latency (milliseconds) under which the fraction p of the
+     * sorted latencies are.
+     */
+    private static double percentile(long[] latencies, double p)
+    {
+        if (latencies.length == 0)
+        {
+            return 0;
+        }
+
+        int index = (int) Math.ceil(p * latencies.length) - 1;
+        return latencies[Math.max(0, index)] / 1e6;
+    }
+
+
+    /**
+     * What every bot counts.
+     */
+    private static class Stats
+    {
+        private final AtomicLong mDelivered = new AtomicLong();
+        private final AtomicLong mLastDelivery = new AtomicLong();
+        private final AtomicInteger mErrors = new AtomicInteger();
+    }
+
+
+    /**
+     * A headless user: it only records the delivery latency of the messages
+     * of the run.
+     */
+    private static class Bot implements Client.View
+    {
+        private final Client.BasicClient mClient;
+        private final String mRunPrefix;
+        private final Stats mStats;
+        // Delivery latencies (nanoseconds), guarded by this.
+        private long[] mLatencies;
+        private int mLatencyCount;
+
+        private Bot(Client.BasicClient client, String run, Stats stats)
+        {
+            mClient = client;
+            mRunPrefix = run + " ";
+            mStats = stats;
+            mLatencies = new long[1024];
+            mLatencyCount = 0;
+            mClient.bindWithView(this);
+        }
+
+        private void send(String content)
+        {
+            mClient.sendMessage(content);
+        }
+
+        @Override
+        public void addMessageToChat(String time, String sender, String content)
+        {
+            long now = System.nanoTime();
+
+            if (! content.startsWith(mRunPrefix))
+            {
+                return ;
+            }
+
+            long sent = Long.parseLong(content.substring(mRunPrefix.length(),
+                        content.indexOf(' ', mRunPrefix.length())));
+
+            synchronized (this)
+            {
+                if (mLatencyCount == mLatencies.length)
+                {
+                    mLatencies = Arrays.copyOf(mLatencies, mLatencyCount * 2);
+                }
+
+                mLatencies[mLatencyCount++] = now - sent;
+            }
+
+            mStats.mDelivered.incrementAndGet();
+            mStats.mLastDelivery.accumulateAndGet(now, Math::max);
+        }
+
+        @Override
+        public void addNotice(String notice, boolean isError)
+        {
+            if (isError)
+            {
+                mStats.mErrors.incrementAndGet();
+                System.err.println(notice.trim());
+            }
+        }
+
+        @Override
+        public void markHistoryStart()
+        {
+        }
+
+        @Override
+        public void clearHistory()
+        {
+        }
+
+        @Override
+        public void addOlderMessagesToChat(List<Linker.Message> messages)
+        {
+        }
+
+        @Override
+        public void addToUsersList(String name)
+        {
+        }
+
+        @Override
+        public void removeFromUserList(String name)
+        {
+        }
+
+        @Override
+        public void clearUsersList()
+        {
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package crowdchat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+
+
+/**
+ * Compare the size and serialize/deserialize speed of "Linker.Message" 
+ * (and of a history "Linker.Page") with the previous format: default 
+ * serialization of three strings, the time being "HH:mm:ss".
+ */
+public class MessageFormatBench
+{
+    // Constants.
+    private static final int HISTORY_SIZE = 1000;
+    private static final String[] SENDERS = { "alice", "bob", "carol", "dave", "eve" };
+    private static final long DURATION_NANOS = 2_000_000_000L;
+
+    public static void main(String[] args) throws Exception
+    {
+        long now = System.currentTimeMillis();
+        String content = "Did anyone look at the build failure on the release branch?";
+
+        LegacyMessage legacy = new LegacyMessage("12:00:00", "alice", content);
+        Linker.Message message = new Linker.Message(now, "alice", content);
+
+        ArrayList<LegacyMessage> legacyHistory = new ArrayList<>();
+        ArrayList<Linker.Message> messages = new ArrayList<>();
+
+        for (int i = 0; i < HISTORY_SIZE; i++)
+        {
+            // Distinct strings, as read from the network or the disk.
+            String sender = new String(SENDERS[i % SENDERS.length]);
+            String text = content + " (" + i + ")";
+            Linker.Message m = new Linker.Message(now + i * 1000L, sender, text);
+            legacyHistory.add(new LegacyMessage(m.getTime(), new String(sender), text));
+            messages.add(m);
+        }
+
+        Linker.Page page = new Linker.Page(0, messages);
+
+        System.out.println("                       bytes   round trips/s");
+        print("legacy message", legacy);
+        print("message", message);
+        print("legacy history (1000)", legacyHistory);
+        print("page (1000)", page);
+    }
+
+    private static void print(String name, Object object) throws Exception
+    {
+        // Warm up.
+        roundTrips(object);
+        System.out.printf("%-21s %7d %15.0f%n", name, serialize(object).length, roundTrips(object));
+    }
+
+    /**
+     * Return the number of serialize + deserialize per second.
+     */
+    private static double roundTrips(Object object) throws Exception
+    {
+        long begin = System.nanoTime();
+        long count = 0;
+
+        while (System.nanoTime() - begin < DURATION_NANOS)
+        {
+            deserialize(serialize(object));
+            count++;
+        }
+
+        return count / ((System.nanoTime() - begin) / 1e9);
+    }
+
+    private static byte[] serialize(Object object) throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+        {
+            out.writeObject(object);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws Exception
+    {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes)))
+        {
+            return in.readObject();
+        }
+    }
+
+
+    /**
+     * "Linker.Message" before its hand written format.
+     */
+    private static class LegacyMessage implements Serializable
+    {
+        private static final long serialVersionUID = 667363824879925614L;
+
+        private final String mTime;
+        private final String mSender;
+        private final String mContent;
+
+        private LegacyMessage(String time, String sender, String content)
+        {
+            mTime = time;
+            mSender = sender;
+            mContent = content;
+        }
+    }
+}
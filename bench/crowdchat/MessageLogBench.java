@@ -0,0 +1,170 @@
+package crowdchat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+
+/**
+ * Compare the append throughput of the "MessageLog" with a synchronized 
+ * "ArrayList" (the previous message store) for several writer threads:
+ * alone, then with a reader copying the last page of messages in a loop
+ * (as "getLastMessages" and the dispatcher do), whose reads are counted.
+ */
+public class MessageLogBench
+{
+    // Constants.
+    private static final int[] WRITERS = { 1, 4, 16 };
+    private static final int MESSAGES = 4_000_000;
+    private static final int ROUNDS = 5;
+    // Messages copied by every read.
+    private static final int PAGE_SIZE = 50;
+
+    public static void main(String[] args) throws Exception
+    {
+        Linker.Message message = new Linker.Message(0, "bench", "Hello world!");
+
+        System.out.println("writers  synchronized ArrayList  MessageLog   (messages/s)");
+
+        for (int writers : WRITERS)
+        {
+            double list = 0;
+            double log = 0;
+
+            for (int round = 0; round < ROUNDS; round++)
+            {
+                List<Linker.Message> l = Collections.synchronizedList(new ArrayList<>());
+                MessageLog m = new MessageLog();
+
+                // Keep the best round (first ones are warm up).
+                list = Math.max(list, run(writers, () -> l.add(message), null)[0]);
+                log = Math.max(log, run(writers, () -> m.append(message), null)[0]);
+            }
+
+            System.out.printf("%7d  %23.0f  %10.0f%n", writers, list, log);
+        }
+
+        System.out.println();
+        System.out.println("With a reader:   synchronized ArrayList          MessageLog");
+        System.out.println("writers     messages/s      reads/s   messages/s      reads/s");
+
+        for (int writers : WRITERS)
+        {
+            double[] list = { 0, 0 };
+            double[] log = { 0, 0 };
+
+            for (int round = 0; round < ROUNDS; round++)
+            {
+                List<Linker.Message> l = Collections.synchronizedList(new ArrayList<>());
+                MessageLog m = new MessageLog();
+
+                list = best(list, run(writers, () -> l.add(message), 
+                            () -> 
+                            {
+                                synchronized (l)
+                                {
+                                    int end = l.size();
+                                    return new ArrayList<>(
+                                            l.subList(Math.max(0, end - PAGE_SIZE), end));
+                                }
+                            }
+                ));
+                log = best(log, run(writers, () -> m.append(message), 
+                            () -> 
+                            {
+                                long end = m.getEnd();
+                                return m.snapshot(end - PAGE_SIZE, end);
+                            }
+                ));
+            }
+
+            System.out.printf("%7d  %13.0f  %11.0f  %11.0f  %11.0f%n", writers, 
+                    list[0], list[1], log[0], log[1]);
+        }
+    }
+
+    private static double[] best(double[] a, double[] b)
+    {
+        return a[0] >= b[0] ? a : b;
+    }
+
+    /**
+     * Return the number of appends per second done by the writers, and of
+     * reads per second done meanwhile (0 if no read).
+     */
+    private static double[] run(int writers, Runnable append, 
+            Supplier<List<Linker.Message>> read) throws Exception
+    {
+        CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < writers; i++)
+        {
+            Thread thread = new Thread(
+                    () -> 
+                    {
+                        try
+                        {
+                            start.await();
+                        }
+                        catch (InterruptedException e)
+                        {
+                            return;
+                        }
+
+                        for (int j = 0; j < MESSAGES / writers; j++)
+                        {
+                            append.run();
+                        }
+                    }
+            );
+            thread.start();
+            threads.add(thread);
+        }
+
+        AtomicBoolean isDone = new AtomicBoolean(false);
+        long[] reads = { 0 };
+        Thread reader = new Thread(
+                () -> 
+                {
+                    long count = 0;
+                    long sink = 0;
+
+                    while (! isDone.get())
+                    {
+                        sink += read.get().size();
+                        count++;
+                    }
+
+                    // (Keep the copies from being optimized away.)
+                    reads[0] = count + (sink < 0 ? 1 : 0);
+                }
+        );
+
+        if (read != null)
+        {
+            reader.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        double seconds = (System.nanoTime() - begin) / 1e9;
+
+        if (read != null)
+        {
+            isDone.set(true);
+            reader.join();
+        }
+
+        return new double[] { MESSAGES / seconds, reads[0] / seconds };
+    }
+}
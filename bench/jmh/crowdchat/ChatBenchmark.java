@@ -0,0 +1,84 @@
+package crowdchat;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.text.BadLocationException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Time the chat update of "Application.addToChat" (headless: the document
+ * only, without the view): the entries added during a frame are appended
+ * to a full chat at once, and as many of the oldest ones are removed.
+ */
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ChatBenchmark
+{
+    // Constants.
+    // Entries kept in the chat (as "Application.MAX_CHAT_ENTRIES").
+    private static final int CHAT_ENTRIES = 2000;
+
+    // Benchmark parameter (named as on the command line): entries per frame.
+    @Param({ "1", "100" })
+    public int entries;
+
+    private Application.ChatDocument mDocument;
+    private ArrayList<Application.ChatEntry> mFrame;
+
+    @Setup
+    public void setUp() throws BadLocationException
+    {
+        mDocument = new Application.ChatDocument();
+        ArrayList<Application.ChatEntry> chat = new ArrayList<>();
+
+        for (int i = 0; i < CHAT_ENTRIES; i++)
+        {
+            chat.add(entry(i));
+        }
+
+        mDocument.append(chat);
+        mFrame = new ArrayList<>();
+
+        for (int i = 0; i < entries; i++)
+        {
+            mFrame.add(entry(i));
+        }
+    }
+
+    @Benchmark
+    public int addToChat() throws BadLocationException
+    {
+        int length = mDocument.getLength();
+        mDocument.append(mFrame);
+        // Keep the same size (the added text is removed from the start).
+        mDocument.remove(0, mDocument.getLength() - length);
+
+        return mDocument.getLength();
+    }
+
+    private static Application.ChatEntry entry(int i)
+    {
+        return i % 10 == 0 
+            ? Application.ChatEntry.notice(Application.decorate("[Server]: user" + i 
+                        + " is connected.", Application.ATTR_SERVER), Application.ATTR_SERVER)
+            : Application.ChatEntry.message("12:00:00", "user" + (i % 5), 
+                    "Did anyone look at the build failure on the release branch?");
+    }
+}
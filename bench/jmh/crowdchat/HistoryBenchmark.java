@@ -0,0 +1,95 @@
+package crowdchat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Time a history round trip through the journal of a room: what the server
+ * does to save it ("saveMessageHistory": the pending messages are written 
+ * and synced on close) and to load it back ("retrieveMessageHistory": the
+ * journal is replayed into a "MessageLog").
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class HistoryBenchmark
+{
+    // Constants.
+    private static final long FSYNC_INTERVAL = 50;
+
+    // Benchmark parameter (named as on the command line).
+    @Param({ "10000", "100000" })
+    public int messages;
+
+    private ArrayList<Linker.Message> mMessages;
+    private Path mDirectory;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        mMessages = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        for (int i = 0; i < messages; i++)
+        {
+            mMessages.add(new Linker.Message(now + i, "user" + (i % 5), 
+                        "Did anyone look at the build failure on the release branch? (" + i + ")"));
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void createDirectory() throws IOException
+    {
+        mDirectory = Files.createTempDirectory("crowdchat-history");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteDirectory() throws IOException
+    {
+        try (Stream<Path> files = Files.walk(mDirectory))
+        {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public MessageLog roundTrip() throws IOException
+    {
+        Journal saved = new Journal(mDirectory, FSYNC_INTERVAL);
+        saved.replay();
+        saved.start();
+        mMessages.forEach(saved::append);
+        saved.close();
+
+        Journal retrieved = new Journal(mDirectory, FSYNC_INTERVAL);
+        ArrayList<Linker.Message> messages = retrieved.replay();
+        MessageLog log = new MessageLog(retrieved.getReplayedBase());
+        log.appendAll(messages);
+        retrieved.close();
+
+        return log;
+    }
+}
@@ -0,0 +1,130 @@
+package crowdchat;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Time "BasicLinker.addMessage" (no client connected: the cost paid by 
+ * the sender), and the serialization of the whole history returned by
+ * "getClientMessages" (as RMI writes it) for 10k, 100k and 1M messages.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LinkerBenchmark
+{
+    // Constants.
+    private static final String CONTENT = "Did anyone look at the build failure on the release branch?";
+    private static final String[] SENDERS = { "alice", "bob", "carol", "dave", "eve" };
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long addMessage(EmptyRoom room) throws RemoteException
+    {
+        return room.mLinker.addMessage(Linker.DEFAULT_ROOM, "alice", CONTENT);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long getClientMessages(FullRoom room) throws IOException
+    {
+        CountingStream bytes = new CountingStream();
+
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+        {
+            out.writeObject(room.mLinker.getClientMessages(Linker.DEFAULT_ROOM));
+        }
+
+        return bytes.mCount;
+    }
+
+
+    /**
+     * A linker with a room without history (a new one per iteration, as
+     * the messages added stay in memory).
+     */
+    @State(Scope.Benchmark)
+    public static class EmptyRoom
+    {
+        private Linker.BasicLinker mLinker;
+
+        @Setup(Level.Iteration)
+        public void setUp() throws RemoteException
+        {
+            mLinker = new Linker.BasicLinker();
+            mLinker.getRoom(Linker.DEFAULT_ROOM);
+        }
+    }
+
+    /**
+     * A linker with a room of "messages" messages.
+     */
+    @State(Scope.Benchmark)
+    public static class FullRoom
+    {
+        // Benchmark parameter (named as on the command line).
+        @Param({ "10000", "100000", "1000000" })
+        public int messages;
+
+        private Linker.BasicLinker mLinker;
+
+        @Setup(Level.Trial)
+        public void setUp() throws RemoteException
+        {
+            mLinker = new Linker.BasicLinker();
+            ArrayList<String> batch = new ArrayList<>();
+
+            for (int i = 0; i < messages; i++)
+            {
+                batch.add(CONTENT + " (" + i + ")");
+
+                if (batch.size() == 1000 || i == messages - 1)
+                {
+                    mLinker.addMessages(Linker.DEFAULT_ROOM, SENDERS[i % SENDERS.length], batch);
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Count the bytes written, without keeping them.
+     */
+    private static class CountingStream extends OutputStream
+    {
+        private long mCount;
+
+        @Override
+        public void write(int b)
+        {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length)
+        {
+            mCount += length;
+        }
+    }
+}
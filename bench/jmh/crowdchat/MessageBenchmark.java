@@ -0,0 +1,85 @@
+package crowdchat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Time the serialization of one "Linker.Message", as sent by RMI 
+ * ("writeExternal") and as written in the journal ("write").
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class MessageBenchmark
+{
+    private Linker.Message mMessage;
+    // The message already serialized by RMI and by the journal.
+    private byte[] mSerialized;
+    private byte[] mWritten;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        mMessage = new Linker.Message(System.currentTimeMillis(), "alice",
+                "Did anyone look at the build failure on the release branch?");
+        mSerialized = serialize();
+        mWritten = write();
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+        {
+            out.writeObject(mMessage);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public Object deserialize() throws IOException, ClassNotFoundException
+    {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(mSerialized)))
+        {
+            return in.readObject();
+        }
+    }
+
+    @Benchmark
+    public byte[] write() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        mMessage.write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public Linker.Message read() throws IOException
+    {
+        return Linker.Message.read(new DataInputStream(new ByteArrayInputStream(mWritten)));
+    }
+}
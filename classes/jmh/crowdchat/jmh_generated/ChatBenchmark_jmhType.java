@@ -0,0 +1,4 @@
+package crowdchat.jmh_generated;
+public class ChatBenchmark_jmhType extends ChatBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package crowdchat.jmh_generated;
+public class LinkerBenchmark_EmptyRoom_jmhType extends LinkerBenchmark_EmptyRoom_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package crowdchat.jmh_generated;
+public class LinkerBenchmark_FullRoom_jmhType extends LinkerBenchmark_FullRoom_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package crowdchat.jmh_generated;
+public class LinkerBenchmark_jmhType extends LinkerBenchmark_jmhType_B3 {
+}
+
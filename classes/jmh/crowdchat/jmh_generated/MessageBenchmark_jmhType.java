@@ -0,0 +1,4 @@
+package crowdchat.jmh_generated;
+public class MessageBenchmark_jmhType extends MessageBenchmark_jmhType_B3 {
+}
+
@@ -4,23 +4,52 @@ import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import javax.swing.plaf.ColorUIResource;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultCaret;
+import javax.swing.text.DefaultStyledDocument;
 import javax.swing.text.Document;
 import javax.swing.text.SimpleAttributeSet;
 import javax.swing.text.StyleConstants;
 import java.awt.*;
 import java.awt.event.ActionListener;
 import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 
 /**
  * The GUI bound with a "Client".
  */
-public class Application
+public class Application implements Client.View
 {
     public static void main(String[] args) 
     {   
+        String transport = parseOption(args, "transport", "rmi");
+
+        if (! transport.equals("rmi") && ! transport.equals("socket"))
+        {
+            System.err.println("Error: unknown transport \"" + transport + "\".");
+            System.exit(-1);
+        }
+
         // Create the client.
-        Client.BasicClient client = new Client.BasicClient(parseArgs(args));
+        Client.BasicClient client = new Client.BasicClient(parseArgs(args), 
+                parseOption(args, "room", Linker.DEFAULT_ROOM), transport.equals("socket"));
+        int compressAbove = Integer.parseInt(parseOption(args, "compress-above", "-1"));
+
+        if (compressAbove >= 0)
+        {
+            client.setCompression(compressAbove);
+        }
+
         // Start the app with this client.
         SwingUtilities.invokeLater(() -> new Application(client));
         // Handle the ctrl-C exits (alt-F4 done with Swing).
@@ -29,7 +58,13 @@ public class Application
                 {
                     if (client.isConnected())
                     {
-                        client.disconnect();
+                        try
+                        {
+                            client.disconnect().get(EXIT_TIMEOUT, TimeUnit.MILLISECONDS);
+                        }
+                        catch (Exception ignored)
+                        {
+                        }
                     }       
                 }
             )
@@ -38,17 +73,45 @@ public class Application
 
     public static String parseArgs(String[] args)
     {
-        if (args.length < 1) 
+        for (String arg : args)
+        {
+            if (! arg.startsWith("--"))
+            {
+                return arg;
+            }
+        }
+
+        return "localhost";
+    }
+
+    /**
+     * Return the value of the "--name=value" argument, or defaultValue
+     * if not given.
+     */
+    public static String parseOption(String[] args, String name, String defaultValue)
+    {
+        for (String arg : args)
         {
-            return "localhost";
+            if (arg.startsWith("--" + name + "="))
+            {
+                return arg.substring(name.length() + 3);
+            }
         }
 
-        return args[0];
+        return defaultValue;
     }
 
 
     // Constants.
     private final String FONT = "";
+    // At most one chat update per frame (~30 per second).
+    private final int FRAME_MILLIS = 33;
+    // Messages kept in the chat (the others are fetched again on demand).
+    private final int MAX_CHAT_ENTRIES = 2000;
+    // Distance to the bottom (pixels) under which the chat follows the new messages.
+    private final int FOLLOW_MARGIN = 20;
+    // Longest wait (milliseconds) for the disconnection when exiting.
+    private static final long EXIT_TIMEOUT = 5_000;
 
     public final static SimpleAttributeSet ATTR_PLAIN 
         = new SimpleAttributeSet(); 
@@ -70,6 +133,37 @@ public class Application
     private JFrame mFrame;
     // The chat messages.
     private JTextPane mChatArea;
+    // Where the older messages of the history are inserted.
+    private int mHistoryStart;
+    // Text waiting to be displayed in the chat (added from any thread).
+    private final ConcurrentLinkedQueue<ChatEntry> mPendingChat = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mIsChatUpdateScheduled = new AtomicBoolean(false);
+    private final Timer mChatUpdateTimer = new Timer(FRAME_MILLIS, e -> updateChat());
+    // Every entry displayed after the history start, in order.
+    private final ArrayDeque<ChatEntry> mDisplayedChat = new ArrayDeque<>();
+    // True when the most recent messages were removed (user far up in the history).
+    private boolean mIsDetached;
+    private JScrollBar mChatScrollBar;
+    // Fetch the history off the EDT (one page at a time).
+    private final ExecutorService mHistoryLoader = Executors.newSingleThreadExecutor(
+            r -> 
+            {
+                Thread thread = new Thread(r, "crowdchat-history");
+                thread.setDaemon(true);
+                return thread;
+            }
+    );
+    // True from a history fetch until its messages are displayed (EDT only).
+    private boolean mIsLoadingHistory;
+    // Run the searches off the EDT (one at a time).
+    private final ExecutorService mSearcher = Executors.newSingleThreadExecutor(
+            r -> 
+            {
+                Thread thread = new Thread(r, "crowdchat-search");
+                thread.setDaemon(true);
+                return thread;
+            }
+    );
     // The connected user names.
     private DefaultListModel<String> mUserList;
 
@@ -85,7 +179,7 @@ public class Application
         createFrame();
         // Load the client.
         mClient = client;
-        mClient.bindWithGUI(this);
+        mClient.bindWithView(this);
     }
 
     private void loadTextStyles()
@@ -141,7 +235,7 @@ public class Application
 
     private void createFrame()
     {
-        mFrame = new JFrame("CrowdChat");
+        mFrame = new JFrame("CrowdChat - " + mClient.getRoom());
         Container container = mFrame.getContentPane();
         container.setLayout(new BorderLayout());
         container.add(getRightPanel(), BorderLayout.CENTER);
@@ -155,18 +249,23 @@ public class Application
             @Override
             public void windowClosing(java.awt.event.WindowEvent windowEvent) 
             {
-                if (mClient.isConnected())
+                mFrame.setVisible(false);
+
+                if (! mClient.isConnected())
                 {
-                    mClient.disconnect();
+                    System.exit(0);
                 }
 
-                System.exit(0);
+                // Exit once disconnected (not waiting on the EDT).
+                mClient.disconnect()
+                    .orTimeout(EXIT_TIMEOUT, TimeUnit.MILLISECONDS)
+                    .whenComplete((result, e) -> System.exit(0));
             }
         });
         // App icon.
         mFrame.setIconImage(mIcon);
-        // Auto-exit when closing app.
-        mFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        // Exit done by the window listener (once disconnected).
+        mFrame.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
         // Center app.
         mFrame.setLocationRelativeTo(null);
         // Fullscreen.
@@ -212,42 +311,227 @@ public class Application
 
     private JPanel getRightPanel()
     {
+        // Search panel.
+        GridBagConstraints constraints0 = new GridBagConstraints();
+        constraints0.weightx = 1;
+        constraints0.weighty = 0;
+        constraints0.gridx = 0;
+        constraints0.gridy = 0;
+        constraints0.fill = GridBagConstraints.HORIZONTAL;
+        constraints0.anchor = GridBagConstraints.PAGE_START;
         // Chat content panel.
         GridBagConstraints constraints1 = new GridBagConstraints();
         constraints1.weightx = 1;
         constraints1.weighty = 1;
         constraints1.gridx = 0;
-        constraints1.gridy = 0;
+        constraints1.gridy = 1;
         constraints1.fill = GridBagConstraints.BOTH;
         // Input user message panel.
         GridBagConstraints constraints2 = new GridBagConstraints();
         constraints2.weightx = 1;
         constraints2.weighty = 0;
         constraints2.gridx = 0;
-        constraints2.gridy = 1;
+        constraints2.gridy = 2;
         constraints2.fill = GridBagConstraints.HORIZONTAL;
         constraints2.anchor = GridBagConstraints.PAGE_END;
 
         JPanel rightPanel = new JPanel(new GridBagLayout());
+        rightPanel.add(getSearchPanel(), constraints0); 
         rightPanel.add(getChatPanel(), constraints1); 
         rightPanel.add(getInputPanel(), constraints2);
 
         return rightPanel;
     }
 
+    /**
+     * Return the panel in which the user searches the messages of the room.
+     */
+    private JPanel getSearchPanel()
+    {
+        // Search input.
+        JTextField textField = new JTextField();
+        textField.setFont(new Font(FONT, Font.PLAIN, (int) convertFontSizeForWindows(16D)));
+        textField.setToolTipText("Words of the messages (and \"from:name\" for a sender).");
+        textField.addActionListener(onSearchInput(textField));
+        textField.setBackground(new Color(20, 20, 20));
+        textField.setForeground(new Color(225, 225, 225));
+        textField.setBorder(new EmptyBorder(8, 8, 8, 8));
+        // Search button.
+        JButton button = new JButton("SEARCH");
+        button.setFont(new Font(FONT, Font.BOLD, (int) convertFontSizeForWindows(16D)));
+        button.addActionListener(onSearchInput(textField));
+        button.setBackground(new Color(60, 60, 60));
+        button.setForeground(new Color(225, 225, 225));
+        button.setBorder(new EmptyBorder(8, 8, 8, 8));
+
+        // Search input.
+        GridBagConstraints constraints1 = new GridBagConstraints();
+        constraints1.weightx = 0.9;
+        constraints1.weighty = 0;
+        constraints1.gridx = 0;
+        constraints1.gridy = 0;
+        constraints1.fill = GridBagConstraints.HORIZONTAL;
+        // Search button. 
+        GridBagConstraints constraints2 = new GridBagConstraints();
+        constraints2.weightx = 0.1;
+        constraints2.weighty = 0;
+        constraints2.gridx = 1;
+        constraints2.gridy = 0;
+        constraints2.fill = GridBagConstraints.HORIZONTAL;
+
+        JPanel panel = new JPanel(new GridBagLayout());
+        panel.setBorder(new EmptyBorder(20, 30, 0, 30));
+        panel.add(textField, constraints1);
+        panel.add(button, constraints2);
+
+        return panel;
+    }
+
+    private ActionListener onSearchInput(JTextField textField)
+    {
+        return e ->  
+        {
+            String query = textField.getText();
+
+            if (! mClient.isConnected())
+            {
+                addToChat("[Server]: Please log in to " +
+                       "search messages.", ATTR_ERROR);  
+                return ;
+            }
+
+            if (query != null && ! query.trim().isEmpty())
+            {
+                search(query.trim(), -1, 
+                        first ->
+                        {
+                            if (first != null)
+                            {
+                                showSearchResults(query.trim(), first);
+                            }
+                        }
+                );
+            }
+        };
+    }
+
+    /**
+     * Search the messages in the background, then give the hits to show
+     * on the EDT (null if the search failed, the client telling why).
+     */
+    private void search(String query, long cursor, Consumer<Linker.Hits> show)
+    {
+        mSearcher.execute(
+                () -> 
+                {
+                    Linker.Hits hits = mClient.search(query, cursor);
+                    SwingUtilities.invokeLater(() -> show.accept(hits));
+                }
+        );
+    }
+
+    /**
+     * Open a window with the first messages found, the most recent first
+     * (and the next ones on demand).
+     */
+    private void showSearchResults(String query, Linker.Hits first)
+    {
+        JDialog dialog = new JDialog(mFrame, "Search - " + query, false);
+        ChatDocument document = new ChatDocument();
+        JTextPane results = new JTextPane(document);
+        results.setMargin(new Insets(20, 20, 20, 20));
+        results.setFont(new Font(FONT, Font.PLAIN, (int) convertFontSizeForWindows(18D)));
+        results.setEditable(false);
+        results.setBackground(new Color(20, 20, 20));
+        results.setForeground(new Color(225, 225, 225));
+        // Next hits.
+        JButton button = new JButton("MORE");
+        button.setFont(new Font(FONT, Font.BOLD, (int) convertFontSizeForWindows(16D)));
+        button.setBackground(new Color(60, 60, 60));
+        button.setForeground(new Color(225, 225, 225));
+        button.setBorder(new EmptyBorder(8, 8, 8, 8));
+        // Cursor of the next hits.
+        long[] cursor = { -1 };
+
+        Consumer<Linker.Hits> show = hits ->
+        {
+            ArrayList<ChatEntry> entries = new ArrayList<>();
+
+            for (Linker.Message m : hits.getMessages())
+            {
+                entries.add(ChatEntry.message(m.getDateTime(), m.getSender(), m.getContent()));
+            }
+
+            if (entries.isEmpty() && document.getLength() == 0)
+            {
+                entries.add(ChatEntry.notice("No message found.\n", ATTR_ITALIC));
+            }
+
+            try
+            {
+                document.append(entries);
+            }
+            catch (BadLocationException e)
+            {
+                // Always at the end.
+            }
+
+            cursor[0] = hits.getNextCursor();
+            button.setEnabled(hits.hasMore());
+        };
+
+        button.addActionListener(
+                e -> 
+                {
+                    // Until the hits are shown.
+                    button.setEnabled(false);
+                    search(query, cursor[0], 
+                            hits -> 
+                            {
+                                if (hits != null)
+                                {
+                                    show.accept(hits);
+                                }
+                                else
+                                {
+                                    button.setEnabled(true);
+                                }
+                            }
+                    );
+                }
+        );
+        show.accept(first);
+
+        JScrollPane scrollPane = new JScrollPane(results);
+        scrollPane.setBorder(BorderFactory.createLineBorder(new Color(20, 20, 20), 10));
+
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBorder(new EmptyBorder(10, 10, 10, 10));
+        panel.add(scrollPane, BorderLayout.CENTER);
+        panel.add(button, BorderLayout.SOUTH);
+
+        dialog.setContentPane(panel);
+        dialog.setSize(900, 600);
+        dialog.setLocationRelativeTo(mFrame);
+        dialog.setVisible(true);
+    }
+
     /**
      * Return the panel in which the user messages are displayed.
      */
     private JPanel getChatPanel()
     {
         // Message list.
-        mChatArea = new JTextPane();
+        mChatArea = new JTextPane(new ChatDocument());
+        mChatUpdateTimer.setRepeats(false);
         mChatArea.setMargin(new Insets(20, 20, 20, 20));
         mChatArea.setFont(new Font(FONT, Font.PLAIN, (int) convertFontSizeForWindows(20D)));
         mChatArea.setEditable(false);
         mChatArea.setBackground(new Color(20, 20, 20));
         mChatArea.setForeground(new Color(225, 225, 225));
         mChatArea.setBorder(BorderFactory.createLineBorder(new Color(20, 20, 20), 10));
+        // The view is moved explicitly (see "appendToChat").
+        ((DefaultCaret) mChatArea.getCaret()).setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
 
         addToChat("Welcome on CrowdChat.\n" +
                 "You can log in using the button at the bottom left.\n\n",
@@ -255,6 +539,37 @@ public class Application
 
         JScrollPane scrollPane = new JScrollPane(mChatArea);
         scrollPane.setBorder(BorderFactory.createLineBorder(new Color(20, 20, 20), 10));
+        mChatScrollBar = scrollPane.getVerticalScrollBar();
+        // Load the older messages when scrolling up to the top, and the most
+        // recent ones (if removed) when scrolling down to the bottom.
+        mChatScrollBar.addAdjustmentListener(
+                e -> 
+                {
+                    JScrollBar bar = (JScrollBar) e.getAdjustable();
+
+                    if (e.getValueIsAdjusting() || ! mClient.isConnected()
+                            || bar.getVisibleAmount() >= bar.getMaximum())
+                    {
+                        return ;
+                    }
+
+                    if (mIsLoadingHistory)
+                    {
+                        return ;
+                    }
+
+                    if (bar.getValue() == bar.getMinimum())
+                    {
+                        loadHistory(mClient::loadOlderMessages);
+                    }
+                    else if (mIsDetached 
+                            && bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum())
+                    {
+                        mIsDetached = false;
+                        loadHistory(mClient::reloadLatestMessages);
+                    }
+                }
+        );
 
         JPanel panel = new JPanel(new BorderLayout());
         panel.setBorder(BorderFactory.createLineBorder(new Color(30, 30, 30), 30));
@@ -263,6 +578,29 @@ public class Application
         return panel;
     }
 
+    /**
+     * Run the fetch of the history in the background: the client hands the
+     * messages to the view, which displays them on the EDT.
+     */
+    private void loadHistory(Runnable fetch)
+    {
+        mIsLoadingHistory = true;
+        mHistoryLoader.execute(
+                () -> 
+                {
+                    try
+                    {
+                        fetch.run();
+                    }
+                    finally
+                    {
+                        // After the messages handed to the EDT.
+                        SwingUtilities.invokeLater(() -> mIsLoadingHistory = false);
+                    }
+                }
+        );
+    }
+
     /**
      * Return the panel in which the user write her/his message.
      */
@@ -487,43 +825,310 @@ public class Application
         };
     }
 
+    /**
+     * Add the message at the end of the chat. Can be called from any thread:
+     * the chat is updated on the EDT, with every message added during a frame
+     * at once.
+     */
     public void addToChat(String message, SimpleAttributeSet attributes) 
+    {
+        mPendingChat.add(ChatEntry.notice(decorate(message, attributes), attributes));
+        scheduleChatUpdate();
+    }
+
+    @Override
+    public void addNotice(String notice, boolean isError)
+    {
+        addToChat(notice, isError ? ATTR_ERROR : ATTR_SERVER);
+    }
+
+    /**
+     * Add a message sent by a user at the end of the chat.
+     */
+    @Override
+    public void addMessageToChat(String time, String sender, String content)
+    {
+        mPendingChat.add(ChatEntry.message(time, sender, content));
+        scheduleChatUpdate();
+    }
+
+    /**
+     * Remember the end of the chat as the place where the older messages
+     * of the history will be inserted.
+     */
+    @Override
+    public void markHistoryStart()
+    {
+        mPendingChat.add(ChatEntry.HISTORY_START);
+        scheduleChatUpdate();
+    }
+
+    /**
+     * Remove every message displayed after the history start.
+     */
+    @Override
+    public void clearHistory()
+    {
+        mPendingChat.add(ChatEntry.CLEAR_HISTORY);
+        scheduleChatUpdate();
+    }
+
+    /**
+     * Insert messages older than the ones displayed, without moving the 
+     * part of the chat the user is looking at. If too many messages are 
+     * displayed, the most recent ones are removed (and loaded back when the
+     * user scrolls down to the bottom).
+     */
+    @Override
+    public void addOlderMessagesToChat(List<Linker.Message> messages)
+    {
+        if (! SwingUtilities.isEventDispatchThread())
+        {
+            SwingUtilities.invokeLater(() -> addOlderMessagesToChat(messages));
+            return ;
+        }
+
+        // The history start may still be in the pending text.
+        updateChat();
+
+        keepView(
+                () -> 
+                {
+                    int offset = mHistoryStart;
+                    ArrayList<ChatEntry> entries = new ArrayList<>();
+
+                    for (Linker.Message m : messages)
+                    {
+                        ChatEntry entry = ChatEntry.message(m.getTime(), m.getSender(), 
+                                m.getContent());
+                        offset = insertToChat(offset, entry);
+                        entries.add(entry);
+                    }
+
+                    for (int i = entries.size() - 1; i >= 0; i--)
+                    {
+                        mDisplayedChat.addFirst(entries.get(i));
+                    }
+
+                    int length = 0;
+
+                    while (mDisplayedChat.size() > MAX_CHAT_ENTRIES)
+                    {
+                        length += mDisplayedChat.removeLast().mLength;
+                        mIsDetached = true;
+                    }
+
+                    removeFromChat(mChatArea.getDocument().getLength() - length, length);
+                }
+        );
+    }
+
+    /**
+     * Insert the entry in the chat at offset, and return the offset 
+     * right after it.
+     */
+    private int insertToChat(int offset, ChatEntry entry)
     {
         Document doc = mChatArea.getDocument();
 
+        for (int i = 0; i < entry.mTexts.length; i++)
+        {
+            try
+            {
+                doc.insertString(offset, entry.mTexts[i], entry.mAttributes[i]);
+            }
+            catch (Exception ignored)
+            {
+            }
+
+            offset += entry.mTexts[i].length();
+        }
+
+        return offset;
+    }
+
+    private void removeFromChat(int offset, int length)
+    {
+        try
+        {
+            mChatArea.getDocument().remove(offset, length);
+        }
+        catch (Exception ignored)
+        {
+        }
+    }
+
+    /**
+     * Return the message with the line breaks of its style.
+     */
+    static String decorate(String message, SimpleAttributeSet attributes)
+    {
         if (attributes == ATTR_ERROR || attributes == ATTR_SERVER)
         {
-            message = "\n" + message + "\n\n";
+            return "\n" + message + "\n\n";
         }
         else if (attributes == ATTR_PLAIN)
         {
-            message = message + "\n";
+            return message + "\n";
+        }
+
+        return message;
+    }
+
+    /**
+     * Update the chat at the next frame (if not already planned).
+     */
+    private void scheduleChatUpdate()
+    {
+        if (mIsChatUpdateScheduled.compareAndSet(false, true))
+        {
+            mChatUpdateTimer.start();
         }
+    }
+
+    /**
+     * Add the pending text to the chat with a single document insertion, 
+     * and scroll down once. Only called on the EDT.
+     */
+    private void updateChat()
+    {
+        mIsChatUpdateScheduled.set(false);
+
+        ArrayList<ChatEntry> entries = new ArrayList<>();
+        ChatEntry entry;
+
+        while ((entry = mPendingChat.poll()) != null)
+        {
+            if (entry == ChatEntry.HISTORY_START || entry == ChatEntry.CLEAR_HISTORY)
+            {
+                appendToChat(entries);
+                entries.clear();
+
+                Document doc = mChatArea.getDocument();
+
+                if (entry == ChatEntry.HISTORY_START)
+                {
+                    mHistoryStart = doc.getLength();
+                }
+                else
+                {
+                    removeFromChat(mHistoryStart, doc.getLength() - mHistoryStart);
+                }
+
+                mDisplayedChat.clear();
+                mIsDetached = false;
+            }
+            else if (! mIsDetached || ! entry.mIsMessage)
+            {
+                // (The new messages are not displayed after a gap.)
+                entries.add(entry);
+            }
+        }
+
+        appendToChat(entries);
+    }
+
+    /**
+     * Append the entries with a single document insertion, and remove the
+     * oldest messages if too many are displayed.
+     */
+    private void appendToChat(List<ChatEntry> entries)
+    {
+        if (entries.isEmpty())
+        {
+            return ;
+        }
+
+        ChatDocument doc = (ChatDocument) mChatArea.getDocument();
+        // Do not move the view if the user is reading older messages.
+        boolean isFollowing = mChatScrollBar.getValue() + mChatScrollBar.getVisibleAmount()
+            >= mChatScrollBar.getMaximum() - FOLLOW_MARGIN;
 
         try
         {
-            doc.insertString(doc.getLength(), message, attributes);
+            doc.append(entries);
         }
         catch (Exception ignored)
         {
         }
 
-        mChatArea.setCaretPosition(doc.getLength());
+        if (mHistoryStart > 0)
+        {
+            mDisplayedChat.addAll(entries);
+        }
+
+        // Not while fetching the page right before the oldest ones displayed.
+        if (mDisplayedChat.size() > MAX_CHAT_ENTRIES && ! mIsLoadingHistory)
+        {
+            Runnable evict = 
+                () -> 
+                {
+                    int length = 0;
+                    int messages = 0;
+
+                    while (mDisplayedChat.size() > MAX_CHAT_ENTRIES)
+                    {
+                        ChatEntry evicted = mDisplayedChat.removeFirst();
+                        length += evicted.mLength;
+                        messages += evicted.mIsMessage ? 1 : 0;
+                    }
+
+                    removeFromChat(mHistoryStart, length);
+                    int evicted = messages;
+                    // Now to be fetched again when scrolling up (told after 
+                    // the fetches, not waiting for the client on the EDT).
+                    mHistoryLoader.execute(() -> mClient.onOldestMessagesEvicted(evicted));
+                };
+
+            if (isFollowing)
+            {
+                evict.run();
+            }
+            else
+            {
+                keepView(evict);
+            }
+        }
+
+        if (isFollowing)
+        {
+            mChatArea.setCaretPosition(doc.getLength());
+        }
     }
 
+    /**
+     * Run the change of the chat, keeping the same messages in the view 
+     * (once the layout is done).
+     */
+    private void keepView(Runnable change)
+    {
+        int value = mChatScrollBar.getValue();
+        int maximum = mChatScrollBar.getMaximum();
+
+        change.run();
+
+        SwingUtilities.invokeLater(
+                () -> mChatScrollBar.setValue(value + mChatScrollBar.getMaximum() - maximum)
+        );
+    }
+
+    @Override
     public void addToUsersList(String name)
     {
-        mUserList.addElement(name);
+        // Always queued, so that the changes stay in order.
+        SwingUtilities.invokeLater(() -> mUserList.addElement(name));
     }
 
+    @Override
     public void removeFromUserList(String name)
     {
-        mUserList.removeElement(name);
+        SwingUtilities.invokeLater(() -> mUserList.removeElement(name));
     }
 
+    @Override
     public void clearUsersList()
     {
-        mUserList.clear();
+        SwingUtilities.invokeLater(() -> mUserList.clear());
     }
 
     public double convertFontSizeForWindows(double fontSize)
@@ -539,4 +1144,104 @@ public class Application
         // No, just return the original font size.
         return fontSize;
     }
+
+
+    /**
+     * Some text to add to the chat (a notice, or a message made of several
+     * styled texts).
+     */
+    static class ChatEntry
+    {
+        // Marks where the history starts in the pending text.
+        private static final ChatEntry HISTORY_START = notice("", null);
+        // Asks to remove the history displayed.
+        private static final ChatEntry CLEAR_HISTORY = notice("", null);
+
+        private final String[] mTexts;
+        private final AttributeSet[] mAttributes;
+        // True for a message sent by a user.
+        private final boolean mIsMessage;
+        private final int mLength;
+
+        private ChatEntry(String[] texts, AttributeSet[] attributes, boolean isMessage)
+        {
+            mTexts = texts;
+            mAttributes = attributes;
+            mIsMessage = isMessage;
+
+            int length = 0;
+
+            for (String text : texts)
+            {
+                length += text.length();
+            }
+
+            mLength = length;
+        }
+
+        static ChatEntry notice(String text, AttributeSet attributes)
+        {
+            return new ChatEntry(new String[] { text }, 
+                    new AttributeSet[] { attributes }, false);
+        }
+
+        static ChatEntry message(String time, String sender, String content)
+        {
+            return new ChatEntry(
+                    new String[] { 
+                        "(" + time + ") ", 
+                        sender + ": ", 
+                        decorate(content, ATTR_PLAIN) 
+                    },
+                    new AttributeSet[] { ATTR_ITALIC, ATTR_BOLD, ATTR_PLAIN }, 
+                    true);
+        }
+    }
+
+
+    /**
+     * The chat document, able to append many styled texts in a single 
+     * insertion (one event and one layout update instead of one per text).
+     */
+    static class ChatDocument extends DefaultStyledDocument
+    {
+        private static final long serialVersionUID = 5310928351893402186L;
+
+        void append(List<ChatEntry> entries) throws BadLocationException
+        {
+            ArrayList<ElementSpec> specs = new ArrayList<>();
+            AttributeSet paragraph = getParagraphElement(getLength()).getAttributes().copyAttributes();
+
+            for (ChatEntry entry : entries)
+            {
+                for (int i = 0; i < entry.mTexts.length; i++)
+                {
+                    String text = entry.mTexts[i];
+                    int start = 0;
+
+                    // One content per line, and a new paragraph after each line break.
+                    while (start < text.length())
+                    {
+                        int end = text.indexOf('\n', start);
+                        boolean isLineEnd = end >= 0;
+                        end = isLineEnd ? end + 1 : text.length();
+
+                        char[] chars = text.substring(start, end).toCharArray();
+                        specs.add(new ElementSpec(entry.mAttributes[i].copyAttributes(), 
+                                    ElementSpec.ContentType, chars, 0, chars.length));
+
+                        if (isLineEnd)
+                        {
+                            specs.add(new ElementSpec(null, ElementSpec.EndTagType));
+                            specs.add(new ElementSpec(paragraph, ElementSpec.StartTagType));
+                        }
+
+                        start = end;
+                    }
+                }
+            }
+
+            insert(getLength(), specs.toArray(new ElementSpec[0]));
+        }
+    }
 }
@@ -1,6 +1,16 @@
 package crowdchat;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
@@ -11,53 +21,201 @@ import java.rmi.server.UnicastRemoteObject;
 /**
  * Communicate with other clients by saving itself in the "RMI register", 
  * save states (messages and name) on the server with the "Linker",
- * and update the GUI. 
+ * and update the view (the GUI). 
  */
 public interface Client extends Remote
 {
     /**
-     * Display the message sent by "sender" at time "time". Called by other client.
+     * Display the message (in the order of the sequence numbers). Called by 
+     * the server.
      */
-    void writeMessage(String time, String sender, String message) throws RemoteException;
+    void writeMessage(Linker.Message message) throws RemoteException;
 
     /**
-     * Notify that the user "name" is disconnected. Called by other client.
+     * Display the messages, in order (same as "writeMessage" for each one, 
+     * for the cost of a single call). Called by the server.
+     */
+    void writeMessages(ArrayList<Linker.Message> messages) throws RemoteException;
+
+    /**
+     * Notify that the user "name" is disconnected. Called by the server.
      */
     void notifyDisconnected(String name) throws RemoteException;
 
     /**
-     * Notify that the user "name" is connected. Called by other client.
+     * Notify that the user "name" is connected. Called by the server.
      */
     void notifyConnected(String name) throws RemoteException;
 
 
+    /**
+     * What shows the chat of a "BasicClient" to its user: the GUI 
+     * ("Application"), or a headless one (e.g. a bot). Called from any 
+     * thread.
+     */
+    interface View
+    {
+        /**
+         * Display a notice from the server (an error if isError).
+         */
+        void addNotice(String notice, boolean isError);
+
+        void addMessageToChat(String time, String sender, String content);
+
+        /**
+         * Remember the end of the chat as the place where the older messages
+         * of the history will be inserted.
+         */
+        void markHistoryStart();
+
+        /**
+         * Remove every message displayed after the history start.
+         */
+        void clearHistory();
+
+        /**
+         * Insert messages older than the ones displayed.
+         */
+        void addOlderMessagesToChat(List<Linker.Message> messages);
+
+        void addToUsersList(String name);
+
+        void removeFromUserList(String name);
+
+        void clearUsersList();
+    }
+
+
     class BasicClient implements Client, Serializable
     {
         private static final long serialVersionUID = 4885573965833413193L;
 
+        // Constants.
+        private static final int HISTORY_PAGE_SIZE = 50;
+        private static final int SEARCH_PAGE_SIZE = 50;
+        // Word of a search query giving the sender ("from:name").
+        private static final String SENDER_FILTER = "from:";
+        private static final int MAX_SEND_BATCH = Linker.BasicLinker.MAX_BATCH_SIZE;
+        // Times a batch refused for being sent too fast is sent again (after
+        // the wait told by the server).
+        private static final int MAX_SEND_RETRIES = 3;
+        // Renew the lease at most every third of it, and retry after a failure.
+        private static final int LEASE_RENEWALS = 3;
+        private static final long LEASE_RETRY_DELAY = 1000;
+        // Next sequence number when the history could not be fetched (then
+        // the first message delivered is the next one).
+        private static final long UNKNOWN_SEQUENCE = Long.MIN_VALUE;
+        // Messages of the room kept on disk, saved every 30 seconds (and on
+        // disconnection).
+        private static final int CACHE_SIZE = 1000;
+        private static final long CACHE_SAVE_INTERVAL = 30 * 1000;
+        // Most messages fetched to bring the cache up to date (else only the
+        // last ones are fetched, as without cache).
+        private static final int MAX_SYNC_SIZE = 200;
+
         // Current user state.
         private boolean mIsConnected;
         private String mName;
-        // Remoted objects.
+        // Room the user connects to.
+        private final String mRoom;
+        // Oldest message of the history displayed.
+        private long mOldestSequence;
+        private boolean mHasOlderMessages;
+        // Sequence number of the next message to display (-1 until the 
+        // history is fetched), and the messages delivered before.
+        private long mNextSequence;
+        private final ArrayList<Linker.Message> mEarlyMessages;
+        // Last messages displayed, kept between the connections.
+        private final HistoryCache mCache;
+        // Connected users displayed, as of the presence version.
+        private final HashSet<String> mUsers;
+        private long mPresenceVersion;
+        // Remoted objects (no registry with a socket: the server delivers
+        // the messages on it).
         private Registry mRegistry;
         private Linker mLinker;
+        private Client mStub;
+        // Sockets the server delivers the messages on (default ones if null).
+        private CompressingSocketFactory mSocketFactory;
         // To print messages and connected users.
-        private Application mApp; 
+        private View mView; 
+        // Messages typed but not yet sent, in order.
+        private final ConcurrentLinkedQueue<String> mOutbox;
+        // Send the messages in the background (one batch at a time).
+        private final ExecutorService mSender;
+        // Renew the lease in the background, while connected (and save the
+        // cache).
+        private final ScheduledExecutorService mHeartbeat;
+        private ScheduledFuture<?> mNextRenewal;
 
-        public BasicClient(String host)
+        /**
+         * Connect to the server on host ("host:port" of its registry, or of
+         * its "SocketServer" if useSocket; the default port if none) to chat
+         * in room.
+         */
+        public BasicClient(String host, String room, boolean useSocket)
+        {
+            this(host, room, useSocket, true);
+        }
+
+        /**
+         * The same, but the messages seen are not kept on disk between the
+         * connections if not isCached (e.g. bots).
+         */
+        public BasicClient(String host, String room, boolean useSocket, boolean isCached)
         {
             mIsConnected = false;
+            mRoom = room;
+            mNextSequence = -1;
+            mEarlyMessages = new ArrayList<>();
+            mUsers = new HashSet<>();
+            mPresenceVersion = 0;
+            mOutbox = new ConcurrentLinkedQueue<>();
+            mSender = Executors.newSingleThreadExecutor(
+                    r -> 
+                    {
+                        Thread thread = new Thread(r, "crowdchat-sender");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+            );
+            mHeartbeat = Executors.newSingleThreadScheduledExecutor(
+                    r -> 
+                    {
+                        Thread thread = new Thread(r, "crowdchat-heartbeat");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+            );
             // Get server objects.
-            getRemotedObjects(host);
+            getRemotedObjects(host, useSocket);
+            mCache = isCached ? HistoryCache.of(host, room, CACHE_SIZE) 
+                : new HistoryCache(null, CACHE_SIZE);
+            mCache.load();
+
+            if (isCached)
+            {
+                mHeartbeat.scheduleWithFixedDelay(mCache::save, CACHE_SAVE_INTERVAL, 
+                        CACHE_SAVE_INTERVAL, TimeUnit.MILLISECONDS);
+            }
         }
 
         /**
-         * Bind this client with the current running gui, to print the messages 
-         * and connected users.
+         * Bind this client with the view printing the messages and connected
+         * users (the GUI, or a headless one).
          */
-        public void bindWithGUI(Application app)
+        public void bindWithView(View view)
         {
-            mApp = app;
+            mView = view;
+        }
+
+        /**
+         * Compress the deliveries of the server of at least threshold bytes
+         * (through RMI only, before connecting; see "CompressingSocketFactory").
+         */
+        public void setCompression(int threshold)
+        {
+            mSocketFactory = new CompressingSocketFactory(threshold);
         }
 
         /**
@@ -65,256 +223,646 @@ public interface Client extends Remote
          */
         public boolean connect(String name)
         {
-            mApp.addToChat("[Server]: Initiating your connection...",
-                    Application.ATTR_SERVER); 
+            mView.addNotice("[Server]: Initiating your connection...", false);
+
+            Client this_stub;
+
+            try
+            {
+                // Export this client so the server can deliver the messages.
+                this_stub = mRegistry == null ? this 
+                    : (Client) UnicastRemoteObject.exportObject(this, 0, mSocketFactory, 
+                            mSocketFactory);
+            }
+            catch (Exception e)
+            {
+                mView.addNotice("[Server]: Error with the server, try again or " +
+                        "relaunch the app.", true);
+                return false;
+            }
 
             try 
             {
                 // Try to create the user with the pseudo on the server side.
-                if (! mLinker.connect(name))
+                if (! mLinker.connect(mRoom, name, this_stub))
                 {
-                    mApp.addToChat("[Server]: Error, this pseudo is not available.", 
-                            Application.ATTR_ERROR);
+                    mView.addNotice("[Server]: Error, this pseudo is not available.", true);
+                    unexport();
                     return false;
                 }
             } 
             catch (Exception e)  
             {
-                mApp.addToChat("[Server]: Error with the server, try again or " + 
-                        "relaunch the app.", Application.ATTR_ERROR);
+                mView.addNotice("[Server]: Error with the server, try again or " + 
+                        "relaunch the app.", true);
+                unexport();
                 return false;
             } 
 
             try
             {
                 // Add this client to the registry.
-                Client this_stub = (Client) 
-                    UnicastRemoteObject.exportObject(this, 0);
-                mRegistry.rebind("rmi://client/" + name, this_stub); 
+                if (mRegistry != null)
+                {
+                    mRegistry.rebind("rmi://client/" + mRoom + "/" + name, this_stub); 
+                }
 
                 mName = name;
+                mStub = this_stub;
                 mIsConnected = true;
             }
             catch (Exception e)
             {
-                mApp.addToChat("[Server]: Error with the server, try again or " +
-                        "relaunch the app.", Application.ATTR_ERROR);
+                mView.addNotice("[Server]: Error with the server, try again or " +
+                        "relaunch the app.", true);
                 return false;
             }
 
-            spreadConnection();
+            scheduleLeaseRenewal(0);
+            syncPresence();
             retrieveMessages();
 
-            mApp.addToChat("[Server]: You are connected as \"" + mName + "\".",
-                    Application.ATTR_SERVER); 
+            mView.addNotice("[Server]: You are connected as \"" + mName + "\" in \"" 
+                    + mRoom + "\".", false); 
 
             return true;
         }
 
         /**
-         * Disconnect the user of the server by releasing her/his pseudo.
+         * Disconnect the user of the server by releasing her/his pseudo, in
+         * the background (return right away): once the messages typed before
+         * leaving are sent, on the sender thread. The future completes when
+         * done.
          */
-        public void disconnect()
+        public CompletableFuture<Void> disconnect()
+        {
+            mView.addNotice("[Server]: Initiating your disconnection...", false);
+            return CompletableFuture.runAsync(this::finishDisconnection, mSender);
+        }
+
+        private void finishDisconnection()
         {
-            mApp.addToChat("[Server]: Initiating your disconnection...",
-                    Application.ATTR_SERVER); 
+            synchronized (this)
+            {
+                if (mNextRenewal != null)
+                {
+                    mNextRenewal.cancel(false);
+                }
+            }
 
             try
             {
                 // Try to unbind the user on the server side.
-                mRegistry.unbind("rmi://client/" + mName);
-                UnicastRemoteObject.unexportObject(this, true);
-                mLinker.disconnect(mName);
+                if (mRegistry != null)
+                {
+                    mRegistry.unbind("rmi://client/" + mRoom + "/" + mName);
+                    UnicastRemoteObject.unexportObject(this, true);
+                }
+
+                mLinker.disconnect(mRoom, mName);
                 mIsConnected = false;
             }
             catch (Exception e)
             {
-                mApp.addToChat("[Server]: Error, cannot completely disconnect you. " + 
-                        "Your username may be unavailable until the server restarts.",
-                        Application.ATTR_ERROR); 
+                mView.addNotice("[Server]: Error, cannot completely disconnect you. " + 
+                        "Your username may be unavailable until the server restarts.", true);
             }
 
-            spreadDisconnection();
             // Remove the connected users.
-            mApp.clearUsersList();  
+            synchronized (this)
+            {
+                mNextSequence = -1;
+                mEarlyMessages.clear();
+                mUsers.clear();
+                mPresenceVersion = 0;
+                mView.clearUsersList();  
+            }
+
+            mCache.save();
 
-            mApp.addToChat("[Server]: Disconnection finished.",
-                    Application.ATTR_SERVER); 
+            mView.addNotice("[Server]: Disconnection finished.", false);
         }
 
         /**
-         * Send the user message.
+         * Send the user message in the background (return right away).
          */
         public void sendMessage(String message)
         {
-            try 
+            mOutbox.add(message);
+            mSender.execute(this::sendOutbox);
+        }
+
+        /**
+         * Send every message of the outbox, in batches. The messages typed 
+         * while a batch is sent are sent together in the next one. A batch 
+         * refused because sent too fast is sent again later (with the 
+         * messages typed meanwhile).
+         */
+        private void sendOutbox()
+        {
+            ArrayList<String> batch = new ArrayList<>();
+            // Halved while the server refuses the batches (more messages than
+            // the sender may send at once).
+            int size = MAX_SEND_BATCH;
+            int retries = 0;
+            // The user is told the messages are slowed down once.
+            boolean isTold = false;
+
+            while (true)
             {
-                // Save this message on the server.
-                String time = mLinker.addMessage(mName, message);
-                // Spread this message to every client (including herself/himself).
-                mLinker.getClientNames().forEach(
-                        s -> 
+                String message;
+
+                while (batch.size() < MAX_SEND_BATCH && (message = mOutbox.poll()) != null)
+                {
+                    batch.add(message);
+                }
+
+                if (batch.isEmpty())
+                {
+                    return ;
+                }
+
+                List<String> sent = batch.subList(0, Math.min(size, batch.size()));
+
+                try 
+                {
+                    // Save these messages on the server, which spreads them to every 
+                    // client (including herself/himself).
+                    mLinker.addMessages(mRoom, mName, new ArrayList<>(sent));
+                } 
+                catch (Exception e)  
+                {
+                    Linker.RateLimitException limit = Linker.RateLimitException.find(e);
+
+                    if (limit != null && (sent.size() > 1 || retries++ < MAX_SEND_RETRIES))
+                    {
+                        size = Math.max(1, sent.size() / 2);
+
+                        if (! isTold)
                         {
-                            try 
-                            {
-                                Client client = (Client) mRegistry.lookup("rmi://client/" + s);
-                                client.writeMessage(time, mName, message);
-                            } 
-                            catch (Exception e)  
-                            {
-                                mApp.addToChat("[Server]: Error, cannot distribute this message " +
-                                        "to \"" + s + "\".", Application.ATTR_ERROR); 
-                            }
+                            mView.addNotice("[Server]: Too many messages, sending again in " 
+                                    + String.format("%.1f", limit.getRetryAfter() / 1000.0) 
+                                    + " s.", true);
+                            isTold = true;
                         }
-                ) ;
-            } 
-            catch (Exception e)  
+
+                        try
+                        {
+                            Thread.sleep(limit.getRetryAfter());
+                        }
+                        catch (InterruptedException interrupted)
+                        {
+                            Thread.currentThread().interrupt();
+                            return ;
+                        }
+
+                        continue;
+                    }
+
+                    mView.addNotice("[Server]: Error, " + (limit != null ? "too many messages, " 
+                                : "") + "cannot distribute " + 
+                            (sent.size() == 1 ? "this message." : "these messages."), true);
+                }
+
+                sent.clear();
+                retries = 0;
+            }
+        }
+
+        /**
+         * Renew the lease after "delay" milliseconds.
+         */
+        private synchronized void scheduleLeaseRenewal(long delay)
+        {
+            mNextRenewal = mHeartbeat.schedule(this::renewLease, delay, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Tell the server this client is still alive, and connect again if 
+         * the server thought it was gone (e.g. after a network outage).
+         */
+        private void renewLease()
+        {
+            if (! mIsConnected)
+            {
+                return ;
+            }
+
+            long delay;
+
+            try
+            {
+                long duration = mLinker.renewLease(mRoom, mName);
+
+                if (duration == 0)
+                {
+                    duration = reconnect();
+
+                    if (duration == 0)
+                    {
+                        return ;
+                    }
+                }
+
+                delay = duration / LEASE_RENEWALS;
+            }
+            catch (Exception e)
+            {
+                // The server is unreachable for now: try again soon.
+                delay = LEASE_RETRY_DELAY;
+            }
+
+            synchronized (this)
+            {
+                // Unless disconnected meanwhile.
+                if (mIsConnected && ! mNextRenewal.isCancelled())
+                {
+                    scheduleLeaseRenewal(delay);
+                }
+            }
+        }
+
+        /**
+         * Connect again with the same name after the lease expired, and
+         * return the new lease duration (0 if not possible).
+         */
+        private long reconnect() throws RemoteException
+        {
+            mView.addNotice("[Server]: Connection lost, reconnecting...", true);
+
+            if (! mLinker.connect(mRoom, mName, mStub))
+            {
+                mView.addNotice("[Server]: Error, cannot reconnect you, this pseudo " +
+                        "is now used by someone else.", true);
+                return 0;
+            }
+
+            if (mRegistry != null)
+            {
+                mRegistry.rebind("rmi://client/" + mRoom + "/" + mName, mStub); 
+            }
+
+            syncPresence();
+            // Messages were missed while disconnected.
+            reloadLatestMessages();
+
+            mView.addNotice("[Server]: You are connected again.", false); 
+            return mLinker.renewLease(mRoom, mName);
+        }
+
+        /**
+         * Stop receiving remote calls (after a failed connection).
+         */
+        private void unexport()
+        {
+            if (mRegistry == null)
+            {
+                return ;
+            }
+
+            try
+            {
+                UnicastRemoteObject.unexportObject(this, true);
+            }
+            catch (Exception ignored)
             {
-                mApp.addToChat("[Server]: Error, cannot distribute this message.",
-                        Application.ATTR_ERROR); 
             }
         }
 
         /**
          * Load every remoted object reference from the server into memory.
          */
-        private void getRemotedObjects(String host)
+        private void getRemotedObjects(String host, boolean useSocket)
         {
             try 
             {
-                mRegistry = LocateRegistry.getRegistry(host); 
+                String[] address = host.split(":");
+
+                if (useSocket)
+                {
+                    mLinker = new SocketLinker(address[0], address.length > 1 
+                            ? Integer.parseInt(address[1]) : SocketLinker.DEFAULT_PORT);
+                    return ;
+                }
+
+                // E.g. a follower started with "--port" on the same host.
+                mRegistry = LocateRegistry.getRegistry(address[0], address.length > 1 
+                        ? Integer.parseInt(address[1]) : Registry.REGISTRY_PORT); 
                 mLinker = (Linker) mRegistry.lookup("rmi://server/ConnectService");
             } 
             catch (Exception e)  
             {
-                mApp.addToChat("[Server]: Error with the server, please " + 
-                        "relaunch the app.", Application.ATTR_ERROR);
+                // (No view bound yet.)
+                System.err.println("Error: cannot reach the server " + host + ": " + e);
                 // Can't continue without them.
                 System.exit(-1);
             }
         }
 
         /**
-         * Spread the user connection to every other client (and herself/himself)
-         * and populate the connected users list.
+         * Bring the connected users list up to date, fetching only the users
+         * who joined or left since the last call.
          */
-        private void spreadConnection()
+        private synchronized void syncPresence()
         {
             try 
             {
-                mLinker.getClientNames().forEach(
-                        s -> 
-                        {
-                            try 
-                            {
-                                // Notify.
-                                Client client = (Client) mRegistry.lookup("rmi://client/" + s);
-                                client.notifyConnected(mName);
-                                // Populate.
-                                if (! s.equals(mName))
-                                {
-                                    mApp.addToUsersList(s);
-                                }
-                            } 
-                            catch (Exception e)  
-                            {
-                                mApp.addToChat("[Server]: Error, cannot notify your connection " +
-                                        "to \"" + s + "\".", Application.ATTR_ERROR); 
-                            }
-                        }
-                ) ;
+                Linker.Presence presence = mLinker.getPresence(mRoom, mPresenceVersion);
+
+                if (presence.isSnapshot())
+                {
+                    mUsers.clear();
+                    mView.clearUsersList();
+                }
+
+                for (String name : presence.getLeft())
+                {
+                    if (mUsers.remove(name))
+                    {
+                        mView.removeFromUserList(name);
+                    }
+                }
+
+                for (String name : presence.getJoined())
+                {
+                    if (mUsers.add(name))
+                    {
+                        mView.addToUsersList(name);
+                    }
+                }
+
+                mPresenceVersion = presence.getVersion();
             } 
             catch (Exception e)  
             {
-                mApp.addToChat("[Server]: Error, cannot notify your connection.",
-                        Application.ATTR_ERROR); 
+                mView.addNotice("[Server]: Error, cannot retrieve the connected users.", true);
             }
         }
 
+        /**
+         * Fetch the most recent messages of the history (the older ones
+         * are fetched on demand by "loadOlderMessages"), then display the
+         * messages delivered meanwhile.
+         */
+        private synchronized void retrieveMessages()
+        {
+            mView.addNotice("[Server]: Recovering message history...", false);
+
+            try 
+            {
+                ArrayList<Linker.Message> messages = fetchLatestMessages();
+                // The older messages will be displayed from here.
+                mView.markHistoryStart();
+                messages.forEach(this::displayMessage);
+            } 
+            catch (Exception e)  
+            {
+                mView.addNotice("[Server]: Error, cannot retrieve message history.", true);
+                mNextSequence = UNKNOWN_SEQUENCE;
+            }
+
+            displayMessages(mEarlyMessages);
+            mEarlyMessages.clear();
+        }
 
         /**
-         * Spread the user disconnection to every other client (and herself/himself)
-         * and populate the connected users list.
+         * Fetch the page of the history right before the displayed messages
+         * (when the user scrolls up to the top of the chat).
          */
-        private void spreadDisconnection()
+        public synchronized void loadOlderMessages()
         {
+            if (! mIsConnected || ! mHasOlderMessages)
+            {
+                return ;
+            }
+
             try 
             {
-                mLinker.getClientNames().forEach(
-                        s -> 
-                        {
-                            try 
-                            {
-                                Client client = (Client) mRegistry.lookup("rmi://client/" + s);
-                                client.notifyDisconnected(mName);
-                            } 
-                            catch (Exception e)  
-                            {
-                                mApp.addToChat("[Server]: Error, cannot notify your disconnection " +
-                                        "to \"" + s + "\".", Application.ATTR_ERROR); 
-                            }
-                        }
-                ) ;
+                ArrayList<Linker.Message> messages 
+                    = mCache.getBefore(mOldestSequence, HISTORY_PAGE_SIZE);
+
+                if (! messages.isEmpty())
+                {
+                    mOldestSequence -= messages.size();
+                    mHasOlderMessages = mOldestSequence > 0;
+                }
+                else
+                {
+                    Linker.Page page = mLinker.getMessagesBefore(mRoom, mOldestSequence, 
+                            HISTORY_PAGE_SIZE);
+                    messages = page.getMessages();
+                    mOldestSequence = page.getFirstSequence();
+                    mHasOlderMessages = page.hasOlder();
+                }
 
-                notifyDisconnected(mName);
+                mView.addOlderMessagesToChat(messages);
             } 
             catch (Exception e)  
             {
-                mApp.addToChat("[Server]: Error, cannot notify your disconnection.",
-                        Application.ATTR_ERROR); 
+                mView.addNotice("[Server]: Error, cannot retrieve message history.", true);
+            }
+        }
+
+        /**
+         * Called when the GUI removed the "count" oldest messages displayed 
+         * (to bound its memory), which are now to be fetched again.
+         */
+        public synchronized void onOldestMessagesEvicted(int count)
+        {
+            if (count > 0)
+            {
+                mOldestSequence += count;
+                mHasOlderMessages = true;
             }
         }
 
         /**
-         * Fetch the message history.
+         * Replace the displayed history with its most recent messages (when
+         * the GUI removed them because the user went far up in the history).
          */
-        private void retrieveMessages()
+        public synchronized void reloadLatestMessages()
         {
-            mApp.addToChat("[Server]: Recovering message history...",
-                    Application.ATTR_SERVER); 
+            if (! mIsConnected)
+            {
+                return ;
+            }
 
             try 
             {
-                mLinker.getClientMessages().forEach(
-                        m -> 
-                        {
-                            try
-                            {
-                                writeMessage(m.getTime(), m.getSender(), m.getContent());
-                            }
-                            catch (Exception e)
-                            {
-                                mApp.addToChat("[Server]: Error, cannot retrieve a message " +
-                                       "from the history.",
-                                        Application.ATTR_ERROR); 
-                            }
-                        }
-                );
+                ArrayList<Linker.Message> messages = fetchLatestMessages();
+                mView.clearHistory();
+                messages.forEach(this::displayMessage);
+            } 
+            catch (Exception e)  
+            {
+                mView.addNotice("[Server]: Error, cannot retrieve message history.", true);
+            }
+        }
+
+        /**
+         * Return the most recent messages of the history, and take them as
+         * displayed: from the cache if it can be brought up to date, else 
+         * from the server (and they are kept in the cache instead).
+         */
+        private ArrayList<Linker.Message> fetchLatestMessages() throws RemoteException
+        {
+            ArrayList<Linker.Message> messages;
+
+            if (syncCache())
+            {
+                long end = mCache.getEnd();
+                messages = mCache.getBefore(end, HISTORY_PAGE_SIZE);
+                mOldestSequence = end - messages.size();
+                mHasOlderMessages = mOldestSequence > 0;
+            }
+            else
+            {
+                Linker.Page page = mLinker.getLastMessages(mRoom, HISTORY_PAGE_SIZE);
+                messages = page.getMessages();
+                mOldestSequence = page.getFirstSequence();
+                mHasOlderMessages = page.hasOlder();
+                mCache.clear();
+                mCache.addAll(messages);
+            }
+
+            // The messages fetched are not displayed again when delivered.
+            mNextSequence = Math.max(mNextSequence, mOldestSequence + messages.size());
+            return messages;
+        }
+
+        /**
+         * Fetch the messages sent since the last one of the cache (sent again
+         * to check the server still has the same history), and keep them.
+         * Return false if the cache is empty, or forgotten because too far 
+         * behind or from another history.
+         */
+        private boolean syncCache() throws RemoteException
+        {
+            Linker.Message last = mCache.getLast();
+
+            if (last == null)
+            {
+                return false;
+            }
+
+            Linker.Page page 
+                = mLinker.getMessagesAfter(mRoom, last.getSequence(), MAX_SYNC_SIZE + 1);
+            ArrayList<Linker.Message> messages = page.getMessages();
+
+            if (page.getFirstSequence() != last.getSequence() || messages.isEmpty() 
+                    || messages.size() > MAX_SYNC_SIZE || ! isSame(messages.get(0), last))
+            {
+                mCache.clear();
+                return false;
+            }
+
+            mCache.addAll(messages.subList(1, messages.size()));
+            return true;
+        }
+
+        private static boolean isSame(Linker.Message a, Linker.Message b)
+        {
+            return a.getTimestamp() == b.getTimestamp() && a.getSender().equals(b.getSender())
+                && a.getContent().equals(b.getContent());
+        }
+
+        /**
+         * Return the messages of the room holding every word of the query
+         * (and sent by "name" if the query has a "from:name" word), the most 
+         * recent first, after the cursor of the previous hits (-1 for the 
+         * first ones). Return null if the search failed.
+         */
+        public Linker.Hits search(String query, long cursor)
+        {
+            StringBuilder words = new StringBuilder();
+            String sender = null;
+
+            for (String word : query.trim().split("\\s+"))
+            {
+                if (word.startsWith(SENDER_FILTER) && word.length() > SENDER_FILTER.length())
+                {
+                    sender = word.substring(SENDER_FILTER.length());
+                }
+                else
+                {
+                    words.append(word).append(' ');
+                }
+            }
+
+            try 
+            {
+                return mLinker.search(mRoom, words.toString(), sender, 0, Long.MAX_VALUE,
+                        SEARCH_PAGE_SIZE, cursor);
             } 
             catch (Exception e)  
             {
-                mApp.addToChat("[Server]: Error, cannot retrieve message history.",
-                        Application.ATTR_ERROR); 
+                mView.addNotice("[Server]: Error, cannot search the messages.", true);
+                return null;
             }
         }
 
         @Override
-        public void writeMessage(String time, String sender, String message) throws RemoteException
+        public void writeMessage(Linker.Message message) throws RemoteException
         {
-            mApp.addToChat("(" + time + ") ", Application.ATTR_ITALIC);
-            mApp.addToChat(sender + ": ", Application.ATTR_BOLD);
-            mApp.addToChat(message, Application.ATTR_PLAIN);
+            displayMessages(List.of(message));
         }
 
         @Override
-        public void notifyDisconnected(String name) throws RemoteException
+        public void writeMessages(ArrayList<Linker.Message> messages) throws RemoteException
+        {
+            displayMessages(messages);
+        }
+
+        /**
+         * Display the messages delivered, in the order of their sequence
+         * numbers: the ones already displayed (e.g. fetched with the history,
+         * or delivered again) are skipped, and the missing ones (dropped by
+         * the server for a too slow client) are told.
+         */
+        private synchronized void displayMessages(List<Linker.Message> messages)
+        {
+            if (mNextSequence == -1)
+            {
+                // Displayed after the history.
+                mEarlyMessages.addAll(messages);
+                return ;
+            }
+
+            for (Linker.Message m : messages)
+            {
+                if (m.getSequence() < mNextSequence)
+                {
+                    continue;
+                }
+
+                // A coalesced message stands for the ones from its first.
+                if (m.getFirstSequence() > mNextSequence && mNextSequence != UNKNOWN_SEQUENCE)
+                {
+                    mView.addNotice("[Server]: " + (m.getFirstSequence() - mNextSequence) 
+                            + " messages missed.", true);
+                }
+
+                displayMessage(m);
+                mCache.add(m);
+                mNextSequence = m.getSequence() + 1;
+            }
+        }
+
+        private void displayMessage(Linker.Message m)
         {
-            mApp.removeFromUserList(name);
+            // Formatted in the time zone of the user.
+            mView.addMessageToChat(m.getTime(), m.getSender(), m.getContent());
+        }
 
+        @Override
+        public void notifyDisconnected(String name) throws RemoteException
+        {
             if (! name.equals(mName))
             {
-                mApp.addToChat(name + " is disconnected.", Application.ATTR_SERVER);
+                mView.addNotice(name + " is disconnected.", false);
             }
+
+            syncPresence();
         }
 
         @Override
@@ -322,10 +870,15 @@ public interface Client extends Remote
         {
             if (! name.equals(mName))
             {
-                mApp.addToChat(name + " is connected.", Application.ATTR_SERVER);
+                mView.addNotice(name + " is connected.", false);
             }
 
-            mApp.addToUsersList(name);
+            syncPresence();
+        }
+
+        public String getRoom()
+        {
+            return mRoom;
         }
 
         public boolean isConnected()
@@ -0,0 +1,447 @@
+package crowdchat;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * Sockets for the RMI objects (the "Linker", the "Node", and the clients)
+ * compressing what they send, with TCP_NODELAY set. What is written until
+ * a flush (an RMI call or its result) is sent as a frame: compressed if at
+ * least threshold bytes, so the short calls (e.g. a one-line message) are
+ * not slowed down. The compressed frames of a socket are one deflate
+ * stream, so every frame is compressed with the words of the previous ones.
+ * A frame is its length (4 bytes, the high bit set if compressed) and its
+ * content.
+ */
+public class CompressingSocketFactory
+    implements RMIClientSocketFactory, RMIServerSocketFactory, Serializable
+{
+    private static final long serialVersionUID = 6203514470738927345L;
+
+    // Constants.
+    public static final int DEFAULT_THRESHOLD = 512;
+    // Longest frame, sent even if not flushed.
+    private static final int MAX_FRAME_SIZE = 64 * 1024;
+    private static final int HEADER_SIZE = 4;
+    private static final int COMPRESSED = 0x80000000;
+
+    // Smallest frame compressed (bytes).
+    private final int mThreshold;
+
+    public CompressingSocketFactory(int threshold)
+    {
+        mThreshold = threshold;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException
+    {
+        Socket socket = new CompressingSocket(mThreshold);
+
+        try
+        {
+            socket.connect(new InetSocketAddress(host, port));
+            socket.setTcpNoDelay(true);
+        }
+        catch (IOException e)
+        {
+            socket.close();
+            throw e;
+        }
+
+        return socket;
+    }
+
+    @Override
+    public ServerSocket createServerSocket(int port) throws IOException
+    {
+        return new CompressingServerSocket(port, mThreshold);
+    }
+
+    /**
+     * Equal factories share the connections (RMI reuses them).
+     */
+    @Override
+    public boolean equals(Object other)
+    {
+        return other != null && other.getClass() == getClass()
+            && ((CompressingSocketFactory) other).mThreshold == mThreshold;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return getClass().hashCode() * 31 + mThreshold;
+    }
+
+
+    private static class CompressingServerSocket extends ServerSocket
+    {
+        private final int mThreshold;
+
+        private CompressingServerSocket(int port, int threshold) throws IOException
+        {
+            super(port);
+            mThreshold = threshold;
+        }
+
+        @Override
+        public Socket accept() throws IOException
+        {
+            Socket socket = new CompressingSocket(mThreshold);
+            implAccept(socket);
+            socket.setTcpNoDelay(true);
+            return socket;
+        }
+    }
+
+
+    private static class CompressingSocket extends Socket
+    {
+        private final int mThreshold;
+        // Created on first use, then the same ones are returned.
+        private InputStream mInput;
+        private OutputStream mOutput;
+
+        private CompressingSocket(int threshold)
+        {
+            mThreshold = threshold;
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException
+        {
+            if (mInput == null)
+            {
+                mInput = new InflatingInputStream(super.getInputStream());
+            }
+
+            return mInput;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException
+        {
+            if (mOutput == null)
+            {
+                mOutput = new DeflatingOutputStream(super.getOutputStream(), mThreshold);
+            }
+
+            return mOutput;
+        }
+    }
+
+
+    /**
+     * Write frames (used by a single thread at a time).
+     */
+    private static class DeflatingOutputStream extends FilterOutputStream
+    {
+        private final int mThreshold;
+        private final Deflater mDeflater;
+        // Frame being written (after its header), and once compressed.
+        private final byte[] mFrame;
+        private int mCount;
+        private byte[] mCompressed;
+
+        private DeflatingOutputStream(OutputStream out, int threshold)
+        {
+            super(out);
+            mThreshold = threshold;
+            // The fastest: it is on the path of every call.
+            mDeflater = new Deflater(Deflater.BEST_SPEED);
+            mFrame = new byte[HEADER_SIZE + MAX_FRAME_SIZE];
+            mCount = 0;
+            mCompressed = new byte[HEADER_SIZE + MAX_FRAME_SIZE / 4];
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            if (mCount == MAX_FRAME_SIZE)
+            {
+                writeFrame();
+            }
+
+            mFrame[HEADER_SIZE + mCount++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            while (len > 0)
+            {
+                if (mCount == MAX_FRAME_SIZE)
+                {
+                    writeFrame();
+                }
+
+                int n = Math.min(len, MAX_FRAME_SIZE - mCount);
+                System.arraycopy(b, off, mFrame, HEADER_SIZE + mCount, n);
+                mCount += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            writeFrame();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                super.close();
+            }
+            finally
+            {
+                mDeflater.end();
+            }
+        }
+
+        private void writeFrame() throws IOException
+        {
+            if (mCount == 0)
+            {
+                return ;
+            }
+
+            if (mCount < mThreshold)
+            {
+                writeHeader(mFrame, mCount);
+                out.write(mFrame, 0, HEADER_SIZE + mCount);
+                mCount = 0;
+                return ;
+            }
+
+            mDeflater.setInput(mFrame, HEADER_SIZE, mCount);
+            int length = HEADER_SIZE;
+
+            while (true)
+            {
+                length += mDeflater.deflate(mCompressed, length, mCompressed.length - length,
+                        Deflater.SYNC_FLUSH);
+
+                // Every byte is out once the output is not full.
+                if (length < mCompressed.length)
+                {
+                    break;
+                }
+
+                mCompressed = Arrays.copyOf(mCompressed, mCompressed.length * 2);
+            }
+
+            writeHeader(mCompressed, (length - HEADER_SIZE) | COMPRESSED);
+            out.write(mCompressed, 0, length);
+            mCount = 0;
+        }
+
+        private static void writeHeader(byte[] frame, int header)
+        {
+            frame[0] = (byte) (header >>> 24);
+            frame[1] = (byte) (header >>> 16);
+            frame[2] = (byte) (header >>> 8);
+            frame[3] = (byte) header;
+        }
+    }
+
+
+    /**
+     * Read frames (used by a single thread at a time).
+     */
+    private static class InflatingInputStream extends FilterInputStream
+    {
+        private final DataInputStream mIn;
+        private final Inflater mInflater;
+        private byte[] mFrame;
+        // Content of the last frame, read up to mPosition.
+        private byte[] mBuffer;
+        private int mPosition;
+        private int mLimit;
+
+        private InflatingInputStream(InputStream in)
+        {
+            super(in);
+            // A frame header and its content read at once from the socket.
+            mIn = new DataInputStream(new BufferedInputStream(in, MAX_FRAME_SIZE / 4));
+            mInflater = new Inflater();
+            mFrame = new byte[MAX_FRAME_SIZE / 4];
+            mBuffer = new byte[MAX_FRAME_SIZE / 4];
+            mPosition = 0;
+            mLimit = 0;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            return fill() ? mBuffer[mPosition++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+
+            if (! fill())
+            {
+                return -1;
+            }
+
+            int n = Math.min(len, mLimit - mPosition);
+            System.arraycopy(mBuffer, mPosition, b, off, n);
+            mPosition += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            if (n <= 0 || ! fill())
+            {
+                return 0;
+            }
+
+            int skipped = (int) Math.min(n, mLimit - mPosition);
+            mPosition += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available()
+        {
+            // Only the content already read (the next frame may not be whole).
+            return mLimit - mPosition;
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                super.close();
+            }
+            finally
+            {
+                mInflater.end();
+            }
+        }
+
+        /**
+         * Read the next frames until one has content, and return false at
+         * the end of the stream.
+         */
+        private boolean fill() throws IOException
+        {
+            while (mPosition == mLimit)
+            {
+                int first = mIn.read();
+
+                if (first < 0)
+                {
+                    return false;
+                }
+
+                int header = (first << 24) | (mIn.readUnsignedByte() << 16)
+                    | mIn.readUnsignedShort();
+                int length = header & ~COMPRESSED;
+
+                if (length > 2 * MAX_FRAME_SIZE)
+                {
+                    throw new IOException("Malformed frame.");
+                }
+
+                mPosition = 0;
+
+                if ((header & COMPRESSED) == 0)
+                {
+                    mBuffer = ensureCapacity(mBuffer, length);
+                    mIn.readFully(mBuffer, 0, length);
+                    mLimit = length;
+                }
+                else
+                {
+                    mFrame = ensureCapacity(mFrame, length);
+                    mIn.readFully(mFrame, 0, length);
+                    inflate(length);
+                }
+            }
+
+            return true;
+        }
+
+        private void inflate(int length) throws IOException
+        {
+            mInflater.setInput(mFrame, 0, length);
+            mLimit = 0;
+
+            try
+            {
+                while (true)
+                {
+                    int n = mInflater.inflate(mBuffer, mLimit, mBuffer.length - mLimit);
+                    mLimit += n;
+
+                    // Every byte is out once the output is not full.
+                    if (mLimit < mBuffer.length && mInflater.needsInput())
+                    {
+                        return ;
+                    }
+
+                    if (mLimit > MAX_FRAME_SIZE || (n == 0 && ! mInflater.needsInput()
+                                && mLimit < mBuffer.length))
+                    {
+                        throw new IOException("Malformed frame.");
+                    }
+
+                    if (mLimit == mBuffer.length)
+                    {
+                        mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+                    }
+                }
+            }
+            catch (DataFormatException e)
+            {
+                throw new IOException("Malformed frame.", e);
+            }
+        }
+
+        private static byte[] ensureCapacity(byte[] buffer, int length)
+        {
+            return buffer.length >= length ? buffer
+                : new byte[Math.max(length, buffer.length * 2)];
+        }
+    }
+}
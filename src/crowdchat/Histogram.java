@@ -0,0 +1,105 @@
+package crowdchat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Count durations by powers of two of microseconds, without locking: 
+ * bucket i counts the durations in [2^(i-1), 2^i[ microseconds (bucket 0
+ * the ones under a microsecond).
+ */
+public class Histogram
+{
+    // Constants.
+    public static final int BUCKETS = 40;
+
+    private final AtomicLongArray mCounts;
+
+    public Histogram()
+    {
+        mCounts = new AtomicLongArray(BUCKETS);
+    }
+
+    public void record(long nanos)
+    {
+        long micros = nanos / 1000;
+        int bucket = micros <= 0 ? 0 
+            : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        mCounts.incrementAndGet(bucket);
+    }
+
+    /**
+     * Add the counts of other to this one.
+     */
+    public void add(Histogram other)
+    {
+        long[] counts = other.getCounts();
+
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            mCounts.addAndGet(i, counts[i]);
+        }
+    }
+
+    /**
+     * Return the count of every bucket.
+     */
+    public long[] getCounts()
+    {
+        long[] counts = new long[BUCKETS];
+
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts[i] = mCounts.get(i);
+        }
+
+        return counts;
+    }
+
+    public long getCount()
+    {
+        long count = 0;
+
+        for (long c : getCounts())
+        {
+            count += c;
+        }
+
+        return count;
+    }
+
+    /**
+     * Return the upper bound (microseconds) of the bucket of the duration
+     * longer than the fraction p of the durations (0 if none recorded).
+     */
+    public long getPercentile(double p)
+    {
+        long[] counts = getCounts();
+        long total = 0;
+
+        for (long c : counts)
+        {
+            total += c;
+        }
+
+        if (total == 0)
+        {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts[i];
+
+            if (seen >= rank)
+            {
+                return 1L << i;
+            }
+        }
+
+        return 1L << (BUCKETS - 1);
+    }
+}
@@ -0,0 +1,236 @@
+package crowdchat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The most recent messages of a room seen by a client, kept on disk between
+ * its connections (under "~/.crowdchat/cache", by server and room): on
+ * reconnection, only the messages sent since the last one kept are fetched.
+ * The messages kept follow each other (no gap in the sequence numbers).
+ */
+public class HistoryCache
+{
+    // Constants.
+    // Version of the file format.
+    private static final int FORMAT = 2;
+
+    private final Path mFile;
+    // Messages kept in the file (more are kept in memory between saves).
+    private final int mCapacity;
+    // Guarded by this.
+    private final ArrayList<Linker.Message> mMessages;
+    private boolean mIsChanged;
+
+    /**
+     * Keep the last "capacity" messages in file (nothing if file is null,
+     * e.g. for bots: many of them would race on the same file).
+     */
+    public HistoryCache(Path file, int capacity)
+    {
+        mFile = file;
+        mCapacity = capacity;
+        mMessages = new ArrayList<>();
+        mIsChanged = false;
+    }
+
+    /**
+     * Return the cache of the room of the server (its host, or "host:port"),
+     * in the home directory of the user.
+     */
+    public static HistoryCache of(String server, String room, int capacity)
+    {
+        // A file name from the server address (e.g. "::1" or "host:port").
+        String directory = server.replaceAll("[^A-Za-z0-9._-]", "_");
+        return new HistoryCache(Path.of(System.getProperty("user.home"), ".crowdchat",
+                    "cache", directory, room), capacity);
+    }
+
+    /**
+     * Read the messages saved (none if no file or unreadable).
+     */
+    public void load()
+    {
+        if (mFile == null || ! Files.exists(mFile))
+        {
+            return ;
+        }
+
+        try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(mFile))))
+        {
+            if (in.readInt() != FORMAT)
+            {
+                throw new IOException("Unknown format.");
+            }
+
+            ArrayList<Linker.Message> messages = Linker.Message.readAll(in);
+
+            synchronized (this)
+            {
+                mMessages.clear();
+                addAll(messages);
+                mIsChanged = false;
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("Error: cannot read the message cache " + mFile + ".");
+        }
+    }
+
+    /**
+     * Write the last messages in the file, if changed since the last save.
+     * The file is replaced at once, so other clients of the same room may
+     * save it as well.
+     */
+    public void save()
+    {
+        ArrayList<Linker.Message> messages;
+
+        synchronized (this)
+        {
+            if (mFile == null || ! mIsChanged)
+            {
+                return ;
+            }
+
+            messages = new ArrayList<>(mMessages.subList(
+                        Math.max(0, mMessages.size() - mCapacity), mMessages.size()));
+            mIsChanged = false;
+        }
+
+        Path temporary = null;
+
+        try
+        {
+            Files.createDirectories(mFile.getParent());
+            temporary = Files.createTempFile(mFile.getParent(), 
+                    mFile.getFileName() + ".", ".new");
+
+            try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(temporary))))
+            {
+                out.writeInt(FORMAT);
+                Linker.Message.writeAll(out, messages);
+            }
+
+            Files.move(temporary, mFile, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            System.err.println("Error: cannot save the message cache " + mFile + ".");
+
+            try
+            {
+                if (temporary != null)
+                {
+                    Files.deleteIfExists(temporary);
+                }
+            }
+            catch (IOException ignored)
+            {
+            }
+        }
+    }
+
+    /**
+     * Return the last message kept, null if none.
+     */
+    public synchronized Linker.Message getLast()
+    {
+        return mMessages.isEmpty() ? null : mMessages.get(mMessages.size() - 1);
+    }
+
+    /**
+     * Return the sequence number after the last message kept, -1 if none.
+     */
+    public synchronized long getEnd()
+    {
+        return mMessages.isEmpty() ? -1 : getLast().getSequence() + 1;
+    }
+
+    /**
+     * Keep the message, after the ones kept (which are forgotten if the
+     * message does not follow them). A message coalescing several ones is
+     * not kept: the history has them one by one.
+     */
+    public synchronized void add(Linker.Message message)
+    {
+        if (mFile == null)
+        {
+            return ;
+        }
+
+        if (! mMessages.isEmpty() && message.getFirstSequence() != getEnd())
+        {
+            mMessages.clear();
+        }
+
+        if (message.getFirstSequence() != message.getSequence())
+        {
+            mIsChanged = true;
+            return ;
+        }
+
+        mMessages.add(message);
+        mIsChanged = true;
+
+        if (mMessages.size() >= 2 * mCapacity)
+        {
+            // Trimmed by halves, not at every message.
+            mMessages.subList(0, mMessages.size() - mCapacity).clear();
+        }
+    }
+
+    public synchronized void addAll(List<Linker.Message> messages)
+    {
+        messages.forEach(this::add);
+    }
+
+    /**
+     * Return the messages kept among the "count" ones right before the
+     * message with this sequence number (the most recent of them, in 
+     * order), none if the messages right before it are not kept.
+     */
+    public synchronized ArrayList<Linker.Message> getBefore(long sequence, int count)
+    {
+        if (mMessages.isEmpty())
+        {
+            return new ArrayList<>();
+        }
+
+        long first = mMessages.get(0).getSequence();
+
+        if (sequence <= first || sequence > getEnd())
+        {
+            return new ArrayList<>();
+        }
+
+        long from = Math.max(first, sequence - count);
+        return new ArrayList<>(mMessages.subList((int) (from - first),
+                    (int) (sequence - first)));
+    }
+
+    /**
+     * Forget every message kept (e.g. when the history of the server no
+     * longer matches them).
+     */
+    public synchronized void clear()
+    {
+        mIsChanged = mIsChanged || ! mMessages.isEmpty();
+        mMessages.clear();
+    }
+}
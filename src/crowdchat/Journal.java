@@ -0,0 +1,1120 @@
+package crowdchat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * Append-only files of the messages sent on the server, so no message is
+ * lost if the server is killed.
+ * The journal is a directory of segments: "<first sequence number>.log"
+ * files of at most SEGMENT_SIZE bytes, each one with a sparse index
+ * "<first sequence number>.index" (the position of one message every
+ * INDEX_INTERVAL messages).
+ * Each record is: payload length (int), payload CRC32 (int), payload.
+ * The messages are written by a single thread in batches, and the files are
+ * synced at most once per "fsync interval" (group commit): a message is on
+ * disk at most one interval after being added.
+ * On start only the last segment is read; the older ones are memory mapped
+ * and read on demand.
+ * Retention: the segments are rolled at least once per "hot window", and
+ * the full segments older than it are compacted into immutable "cold"
+ * ones: "<first sequence number>.cold" files of blocks of INDEX_INTERVAL
+ * compressed records, followed by their index. The segments older than
+ * the retention time, or the oldest ones past the retention size, are
+ * deleted. Reads go through the hot and cold segments alike.
+ */
+public class Journal implements Room.Archive
+{
+    // Constants.
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int INDEX_INTERVAL = 64;
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".index";
+    private static final String COLD_SUFFIX = ".cold";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int BLOCK_HEADER_SIZE = 8;
+    private static final int TRAILER_SIZE = 8;
+    // Period of the retention checks (milliseconds).
+    private static final long COMPACT_INTERVAL = 60_000;
+    // Queued to make the writer stop.
+    private static final Linker.Message END = new Linker.Message(0, "", "");
+
+    private final Path mDirectory;
+    private final long mFsyncIntervalNanos;
+    // Every segment, by first sequence number.
+    private final ConcurrentSkipListMap<Long, Segment> mSegments;
+    // The segment written (the last one).
+    private Segment mActive;
+    // Timestamp of the first message of the active segment (-1 if empty).
+    private long mActiveStart;
+    private FileChannel mChannel;
+    private FileChannel mIndexChannel;
+    // Sequence number of the next message written.
+    private long mNextSequence;
+    // Messages waiting to be written.
+    private final LinkedBlockingQueue<Linker.Message> mPending;
+    private final Thread mWriter;
+    // Time taken to write (and sync) every batch.
+    private final Histogram mSaveDurations;
+    // Retention (milliseconds and bytes, 0 for none).
+    private long mHotWindow;
+    private long mRetentionTime;
+    private long mRetentionSize;
+    // Compact and delete the old segments in the background.
+    private final ScheduledExecutorService mCompactor;
+    // Called with the first sequence number kept once segments are deleted.
+    private volatile LongConsumer mRetentionListener;
+    // Called with the first sequence number of every new active segment.
+    private volatile LongConsumer mRollListener;
+
+    public Journal(Path directory, long fsyncIntervalMillis) throws IOException
+    {
+        mDirectory = directory;
+        mFsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+        mSegments = new ConcurrentSkipListMap<>();
+        mPending = new LinkedBlockingQueue<>();
+        mWriter = new Thread(this::write, "crowdchat-journal");
+        mSaveDurations = new Histogram();
+        mCompactor = Executors.newSingleThreadScheduledExecutor(
+                r ->
+                {
+                    Thread thread = new Thread(r, "crowdchat-compactor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+
+        Files.createDirectories(directory);
+
+        ArrayList<String> names;
+
+        try (Stream<Path> files = Files.list(directory))
+        {
+            names = files.map(f -> f.getFileName().toString())
+                .collect(Collectors.toCollection(ArrayList::new));
+        }
+
+        for (String name : names)
+        {
+            if (name.endsWith(TEMPORARY_SUFFIX))
+            {
+                // Compaction interrupted.
+                Files.delete(directory.resolve(name));
+            }
+            else if (name.endsWith(COLD_SUFFIX))
+            {
+                long base = parseBase(name, COLD_SUFFIX);
+                mSegments.put(base, new Segment(base, true));
+            }
+        }
+
+        for (String name : names)
+        {
+            if (name.endsWith(LOG_SUFFIX))
+            {
+                long base = parseBase(name, LOG_SUFFIX);
+
+                if (mSegments.containsKey(base))
+                {
+                    // Compacted, but not deleted yet.
+                    Files.delete(directory.resolve(name));
+                    Files.deleteIfExists(directory.resolve(name(base, INDEX_SUFFIX)));
+                }
+                else
+                {
+                    mSegments.put(base, new Segment(base, false));
+                }
+            }
+        }
+
+        if (mSegments.isEmpty())
+        {
+            mSegments.put(0L, new Segment(0, false));
+        }
+
+        Segment last = mSegments.lastEntry().getValue();
+
+        if (last.mIsCold)
+        {
+            // Only the full segments are compacted: start the next one.
+            long end = last.mBase + last.getColdCount();
+            mSegments.put(end, new Segment(end, false));
+        }
+
+        // The end of each segment is the start of the next one.
+        Segment previous = null;
+
+        for (Segment segment : mSegments.values())
+        {
+            if (previous != null)
+            {
+                previous.mEnd = segment.mBase;
+            }
+
+            previous = segment;
+        }
+
+        mActive = mSegments.lastEntry().getValue();
+    }
+
+    /**
+     * Roll the segments at least once per hotWindow and compact the full
+     * ones older than it, then delete the segments older than retentionTime
+     * or the oldest ones past retentionSize bytes (milliseconds and bytes, 
+     * 0 for none). Must be called before "start".
+     */
+    public void setRetention(long hotWindow, long retentionTime, long retentionSize)
+    {
+        mHotWindow = hotWindow;
+        mRetentionTime = retentionTime;
+        mRetentionSize = retentionSize;
+    }
+
+    /**
+     * Call the listener with the sequence number of the first message kept,
+     * every time the retention deletes old segments (on the compactor
+     * thread), e.g. to forget what refers to the messages before.
+     */
+    public void setRetentionListener(LongConsumer listener)
+    {
+        mRetentionListener = listener;
+    }
+
+    /**
+     * Call the listener with the sequence number of the first message of
+     * the new active segment every time the segments are rolled (on the
+     * writer thread): the messages before are now readable by "read".
+     */
+    public void setRollListener(LongConsumer listener)
+    {
+        mRollListener = listener;
+    }
+
+    /**
+     * Return the sequence number of the first message kept (the ones
+     * before were deleted by the retention).
+     */
+    public long getFirstSequence()
+    {
+        return mSegments.firstKey();
+    }
+
+    /**
+     * Read every message of the last segment (the older ones are read by
+     * "read"), and rebuild its index. A torn last record (crash while
+     * writing it) is dropped and the segment is truncated right before it.
+     * Must be called before "start".
+     */
+    public ArrayList<Linker.Message> replay() throws IOException
+    {
+        ArrayList<Linker.Message> messages = new ArrayList<>();
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        DataOutputStream indexOut = new DataOutputStream(index);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+        mChannel = FileChannel.open(mActive.mLog, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long position = 0;
+        long size = mChannel.size();
+
+        while (position < size)
+        {
+            header.clear();
+
+            if (readFully(mChannel, header, position) < HEADER_SIZE)
+            {
+                break;
+            }
+
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+
+            if (length < 0 || length > MAX_RECORD_SIZE)
+            {
+                break;
+            }
+
+            ByteBuffer payload = ByteBuffer.allocate(length);
+
+            if (readFully(mChannel, payload, position + HEADER_SIZE) < length
+                    || checksum != checksum(payload.array(), length))
+            {
+                break;
+            }
+
+            if (messages.size() % INDEX_INTERVAL == 0)
+            {
+                indexOut.writeInt(messages.size());
+                indexOut.writeInt((int) position);
+            }
+
+            messages.add(decode(payload.array()));
+            position += HEADER_SIZE + length;
+        }
+
+        if (position < size)
+        {
+            System.err.println("Error: torn record at the end of the journal " +
+                    mActive.mLog + ", " + (size - position) + " bytes dropped.");
+            mChannel.truncate(position);
+        }
+
+        mChannel.position(position);
+        mNextSequence = mActive.mBase + messages.size();
+        mActiveStart = messages.isEmpty() ? -1 : messages.get(0).getTimestamp();
+
+        // The index of the last segment may miss the last entries.
+        mIndexChannel = FileChannel.open(mActive.mIndex, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        writeFully(mIndexChannel, ByteBuffer.wrap(index.toByteArray()));
+
+        return messages;
+    }
+
+    /**
+     * Return the sequence number of the first message returned by "replay"
+     * (the messages before are in the older segments).
+     */
+    public long getReplayedBase()
+    {
+        return mActive.mBase;
+    }
+
+    /**
+     * Start writing the messages added.
+     */
+    public void start() throws IOException
+    {
+        // Never overwrite the records already written.
+        mChannel.position(mChannel.size());
+        mWriter.start();
+
+        if (mHotWindow > 0 || mRetentionTime > 0 || mRetentionSize > 0)
+        {
+            mCompactor.scheduleWithFixedDelay(this::compact, 0, COMPACT_INTERVAL, 
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Queue the message to be written in the journal, at the place of its
+     * sequence number (concurrent senders can queue theirs out of order).
+     */
+    public void append(Linker.Message message)
+    {
+        mPending.add(message);
+    }
+
+    /**
+     * Read the messages with a sequence number in [from, to[ from the
+     * segments already full.
+     */
+    @Override
+    public ArrayList<Linker.Message> read(long from, long to) throws IOException
+    {
+        ArrayList<Linker.Message> messages = new ArrayList<>();
+        Map.Entry<Long, Segment> entry = mSegments.floorEntry(Math.max(0, from));
+
+        if (entry == null)
+        {
+            entry = mSegments.firstEntry();
+        }
+
+        for (Segment segment : mSegments.tailMap(entry.getKey()).values())
+        {
+            if (segment.mBase >= to || segment.mEnd < 0)
+            {
+                break;
+            }
+
+            segment.read(Math.max(from, segment.mBase), Math.min(to, segment.mEnd), messages);
+        }
+
+        return messages;
+    }
+
+    /**
+     * Read the messages with these sequence numbers from the segments
+     * already full, in ascending order: every block of INDEX_INTERVAL 
+     * messages holding some of them is read (and inflated) once.
+     */
+    @Override
+    public ArrayList<Linker.Message> read(List<Long> sequences) throws IOException
+    {
+        ArrayList<Linker.Message> messages = new ArrayList<>();
+        ArrayList<Linker.Message> block = new ArrayList<>();
+        long[] sorted = sequences.stream().mapToLong(Long::longValue).sorted().distinct().toArray();
+        int i = 0;
+
+        while (i < sorted.length)
+        {
+            Map.Entry<Long, Segment> entry = mSegments.floorEntry(sorted[i]);
+
+            if (entry == null || entry.getValue().mEnd < 0 || sorted[i] >= entry.getValue().mEnd)
+            {
+                // Deleted, or not readable yet.
+                i++;
+                continue;
+            }
+
+            Segment segment = entry.getValue();
+            long from = segment.mBase 
+                + (sorted[i] - segment.mBase) / INDEX_INTERVAL * INDEX_INTERVAL;
+            long to = Math.min(from + INDEX_INTERVAL, segment.mEnd);
+            block.clear();
+            segment.read(from, to, block);
+
+            for (Linker.Message m : block)
+            {
+                if (i < sorted.length && sorted[i] == m.getSequence())
+                {
+                    messages.add(m);
+                    i++;
+                }
+            }
+
+            while (i < sorted.length && sorted[i] < to)
+            {
+                // Not found in the block.
+                i++;
+            }
+        }
+
+        return messages;
+    }
+
+    public Histogram getSaveDurations()
+    {
+        return mSaveDurations;
+    }
+
+    /**
+     * Return the size (bytes) of the segments.
+     */
+    public long getSize()
+    {
+        long size = 0;
+
+        for (Segment segment : mSegments.values())
+        {
+            try
+            {
+                size += Files.size(segment.getPath());
+            }
+            catch (IOException e)
+            {
+                // Not created yet.
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Write the pending messages, sync and close the files.
+     */
+    public void close()
+    {
+        try
+        {
+            mPending.add(END);
+            mWriter.join();
+            mCompactor.shutdown();
+            mChannel.close();
+            mIndexChannel.close();
+        }
+        catch (Exception e)
+        {
+            System.err.println("Error: cannot close the journal " + mDirectory + ".");
+        }
+    }
+
+    /**
+     * Writer thread: write the pending messages in batches and sync them
+     * at most once per interval.
+     */
+    private void write()
+    {
+        ArrayList<Linker.Message> batch = new ArrayList<>();
+        // Queued before the ones they follow.
+        PriorityQueue<Linker.Message> early 
+            = new PriorityQueue<>(Comparator.comparingLong(Linker.Message::getSequence));
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        long lastSync = System.nanoTime();
+        boolean isDirty = false;
+        boolean isClosed = false;
+
+        while (! isClosed)
+        {
+            try
+            {
+                // Wait for messages, or for the next sync if some are not synced.
+                Linker.Message first = isDirty
+                    ? mPending.poll(Math.max(0, lastSync + mFsyncIntervalNanos
+                                - System.nanoTime()), TimeUnit.NANOSECONDS)
+                    : mPending.take();
+
+                if (first != null)
+                {
+                    batch.add(first);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                continue;
+            }
+
+            mPending.drainTo(batch);
+            isClosed = batch.remove(END);
+            long start = System.nanoTime();
+
+            // Only the messages following the last one written.
+            early.addAll(batch);
+            batch.clear();
+
+            while (! early.isEmpty() 
+                    && early.peek().getSequence() <= mNextSequence + batch.size())
+            {
+                Linker.Message m = early.poll();
+
+                if (m.getSequence() == mNextSequence + batch.size())
+                {
+                    batch.add(m);
+                }
+            }
+
+            if (isClosed && ! early.isEmpty())
+            {
+                System.err.println("Error: messages from " + early.peek().getSequence() 
+                        + " not written in the journal " + mDirectory + " (missing one before).");
+            }
+
+            try
+            {
+                for (Linker.Message m : batch)
+                {
+                    byte[] record = encode(m);
+                    long position = mChannel.position() + buffer.size();
+
+                    if (position > 0 && (position + record.length > SEGMENT_SIZE 
+                                || (mHotWindow > 0 
+                                    && m.getTimestamp() - mActiveStart >= mHotWindow)))
+                    {
+                        // Full (or old enough to be compacted): write what is 
+                        // left in this segment and start the next one.
+                        flush(buffer, index);
+                        roll();
+                        position = 0;
+                    }
+
+                    if (position == 0)
+                    {
+                        mActiveStart = m.getTimestamp();
+                    }
+
+                    if ((mNextSequence - mActive.mBase) % INDEX_INTERVAL == 0)
+                    {
+                        DataOutputStream out = new DataOutputStream(index);
+                        out.writeInt((int) (mNextSequence - mActive.mBase));
+                        out.writeInt((int) position);
+                    }
+
+                    buffer.write(record);
+                    mNextSequence++;
+                    isDirty = true;
+                }
+
+                flush(buffer, index);
+                batch.clear();
+
+                if (isDirty && (isClosed
+                            || System.nanoTime() - lastSync >= mFsyncIntervalNanos))
+                {
+                    mChannel.force(false);
+                    lastSync = System.nanoTime();
+                    isDirty = false;
+                }
+
+                mSaveDurations.record(System.nanoTime() - start);
+            }
+            catch (IOException e)
+            {
+                System.err.println("Error: cannot write messages in the journal " +
+                        mDirectory + ".");
+                buffer.reset();
+                index.reset();
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(ByteArrayOutputStream buffer, ByteArrayOutputStream index)
+        throws IOException
+    {
+        writeFully(mChannel, ByteBuffer.wrap(buffer.toByteArray()));
+        writeFully(mIndexChannel, ByteBuffer.wrap(index.toByteArray()));
+        buffer.reset();
+        index.reset();
+    }
+
+    /**
+     * Close the active segment (now readable by "read") and start a new one.
+     */
+    private void roll() throws IOException
+    {
+        mChannel.force(false);
+        mChannel.close();
+        mIndexChannel.force(false);
+        mIndexChannel.close();
+
+        Segment segment = new Segment(mNextSequence, false);
+        mChannel = FileChannel.open(segment.mLog, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        mIndexChannel = FileChannel.open(segment.mIndex, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        mSegments.put(segment.mBase, segment);
+        mActive.mEnd = segment.mBase;
+        mActive = segment;
+
+        LongConsumer listener = mRollListener;
+
+        if (listener != null)
+        {
+            listener.accept(segment.mBase);
+        }
+
+        if (mHotWindow > 0)
+        {
+            mCompactor.execute(this::compact);
+        }
+    }
+
+    /**
+     * Compactor thread: compact the full segments older than the hot window,
+     * then delete the ones past the retention (never the active one).
+     */
+    private void compact()
+    {
+        long now = System.currentTimeMillis();
+
+        try
+        {
+            for (Segment segment : mSegments.values())
+            {
+                if (mHotWindow > 0 && segment.mEnd >= 0 && ! segment.mIsCold
+                        && segment.getLastModified() < now - mHotWindow)
+                {
+                    segment.compact();
+                }
+            }
+
+            long size = getSize();
+            Iterator<Segment> segments = mSegments.values().iterator();
+            boolean isDeleted = false;
+
+            while (segments.hasNext())
+            {
+                Segment segment = segments.next();
+
+                if (segment.mEnd < 0 
+                        || ! ((mRetentionTime > 0 
+                                && segment.getLastModified() < now - mRetentionTime)
+                            || (mRetentionSize > 0 && size > mRetentionSize)))
+                {
+                    // The oldest segment is kept, so are the next ones.
+                    break;
+                }
+
+                long deleted = Files.size(segment.getPath());
+                segments.remove();
+                segment.delete();
+                size -= deleted;
+                isDeleted = true;
+            }
+
+            LongConsumer listener = mRetentionListener;
+
+            if (isDeleted && listener != null)
+            {
+                listener.accept(getFirstSequence());
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("Error: cannot compact the journal " + mDirectory + ": " + e);
+        }
+    }
+
+    private static byte[] encode(Linker.Message message) throws IOException
+    {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        message.write(new DataOutputStream(payload));
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream(HEADER_SIZE + payload.size());
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(payload.size());
+        out.writeInt(checksum(payload.toByteArray(), payload.size()));
+        payload.writeTo(out);
+
+        return record.toByteArray();
+    }
+
+    private static Linker.Message decode(byte[] payload) throws IOException
+    {
+        return Linker.Message.read(new DataInputStream(new ByteArrayInputStream(payload)));
+    }
+
+    private static int checksum(byte[] bytes, int length)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+
+    private static String name(long base, String suffix)
+    {
+        return String.format("%020d", base) + suffix;
+    }
+
+    private static long parseBase(String name, String suffix)
+    {
+        return Long.parseLong(name.substring(0, name.length() - suffix.length()));
+    }
+
+    /**
+     * Read from position until the buffer is full or the end of the file,
+     * and return the number of bytes read.
+     */
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position)
+        throws IOException
+    {
+        int read = 0;
+
+        while (buffer.hasRemaining())
+        {
+            int n = channel.read(buffer, position + read);
+
+            if (n < 0)
+            {
+                break;
+            }
+
+            read += n;
+        }
+
+        return read;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+    }
+
+
+    /**
+     * One file of the journal: hot (the records, mapped in memory when read
+     * for the first time) or cold (compressed blocks of records).
+     */
+    private class Segment
+    {
+        private final long mBase;
+        private final Path mLog;
+        private final Path mIndex;
+        private final Path mCold;
+        // Sequence number after the last message, -1 while written.
+        private volatile long mEnd;
+        // Set once compacted (guarded by this, as the reading state).
+        private volatile boolean mIsCold;
+        // Read lazily (the positions are the ones of the blocks if cold).
+        private MappedByteBuffer mMap;
+        private int[] mIndexSequences;
+        private int[] mIndexPositions;
+        // Number of messages of a cold segment (from its trailer).
+        private int mColdCount;
+
+        private Segment(long base, boolean isCold)
+        {
+            mBase = base;
+            mLog = mDirectory.resolve(name(base, LOG_SUFFIX));
+            mIndex = mDirectory.resolve(name(base, INDEX_SUFFIX));
+            mCold = mDirectory.resolve(name(base, COLD_SUFFIX));
+            mEnd = -1;
+            mIsCold = isCold;
+        }
+
+        private Path getPath()
+        {
+            return mIsCold ? mCold : mLog;
+        }
+
+        /**
+         * Return when the last message was written (kept by the compaction).
+         */
+        private long getLastModified() throws IOException
+        {
+            return Files.getLastModifiedTime(getPath()).toMillis();
+        }
+
+        /**
+         * Add the messages with a sequence number in [from, to[ to messages.
+         */
+        private void read(long from, long to, ArrayList<Linker.Message> messages)
+            throws IOException
+        {
+            ByteBuffer map;
+            int[] sequences;
+            int[] positions;
+
+            synchronized (this)
+            {
+                // The same state, even if compacted right after.
+                map = open();
+                sequences = mIndexSequences;
+                positions = mIndexPositions;
+            }
+
+            int first = (int) (from - mBase);
+            int last = (int) (to - mBase);
+
+            if (map == null)
+            {
+                readCold(sequences, positions, first, last, messages);
+                return ;
+            }
+
+            // Start from the closest indexed message before the first one.
+            int entry = findIndexEntry(sequences, first);
+            int sequence = entry < 0 ? 0 : sequences[entry];
+            int position = entry < 0 ? 0 : positions[entry];
+
+            while (sequence < last && position + HEADER_SIZE <= map.limit())
+            {
+                int length = map.getInt(position);
+
+                if (sequence >= first)
+                {
+                    byte[] payload = new byte[length];
+                    map.position(position + HEADER_SIZE);
+                    map.get(payload);
+                    Linker.Message m = decode(payload);
+                    m.setSequence(mBase + sequence);
+                    messages.add(m);
+                }
+
+                position += HEADER_SIZE + length;
+                sequence++;
+            }
+        }
+
+        /**
+         * Read the blocks holding the messages in [first, last[ (relative to
+         * the segment).
+         */
+        private void readCold(int[] sequences, int[] positions, int first, int last, 
+                ArrayList<Linker.Message> messages) throws IOException
+        {
+            try (FileChannel channel = FileChannel.open(mCold, StandardOpenOption.READ))
+            {
+                for (int entry = Math.max(0, findIndexEntry(sequences, first)); 
+                        entry < sequences.length && sequences[entry] < last; entry++)
+                {
+                    ByteBuffer block = readBlock(channel, positions[entry]);
+                    int sequence = sequences[entry];
+
+                    while (sequence < last && block.remaining() >= HEADER_SIZE)
+                    {
+                        int length = block.getInt();
+                        block.getInt();
+
+                        if (sequence >= first)
+                        {
+                            byte[] payload = new byte[length];
+                            block.get(payload);
+                            Linker.Message m = decode(payload);
+                            m.setSequence(mBase + sequence);
+                            messages.add(m);
+                        }
+                        else
+                        {
+                            block.position(block.position() + length);
+                        }
+
+                        sequence++;
+                    }
+                }
+            }
+        }
+
+        private ByteBuffer readBlock(FileChannel channel, long position) throws IOException
+        {
+            ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+            readFully(channel, header, position);
+            header.flip();
+
+            byte[] records = new byte[header.getInt()];
+            ByteBuffer compressed = ByteBuffer.allocate(header.getInt());
+            readFully(channel, compressed, position + BLOCK_HEADER_SIZE);
+
+            Inflater inflater = new Inflater();
+
+            try
+            {
+                inflater.setInput(compressed.array());
+                inflater.inflate(records);
+            }
+            catch (DataFormatException e)
+            {
+                throw new IOException("Corrupted block in " + mCold + ".", e);
+            }
+            finally
+            {
+                inflater.end();
+            }
+
+            return ByteBuffer.wrap(records);
+        }
+
+        /**
+         * Load the index, and return a view of the mapped file (one per 
+         * reader, as a view has a position), or null if cold.
+         */
+        private synchronized ByteBuffer open() throws IOException
+        {
+            if (mIsCold)
+            {
+                if (mIndexSequences == null)
+                {
+                    loadColdIndex();
+                }
+
+                return null;
+            }
+
+            if (mMap == null)
+            {
+                try (FileChannel channel = FileChannel.open(mLog, StandardOpenOption.READ))
+                {
+                    mMap = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+
+                loadIndex();
+            }
+
+            return mMap.duplicate();
+        }
+
+        private void loadIndex() throws IOException
+        {
+            ByteBuffer index = ByteBuffer.wrap(Files.exists(mIndex)
+                    ? Files.readAllBytes(mIndex) : new byte[0]);
+            int entries = index.remaining() / 8;
+
+            mIndexSequences = new int[entries];
+            mIndexPositions = new int[entries];
+
+            for (int i = 0; i < entries; i++)
+            {
+                mIndexSequences[i] = index.getInt();
+                mIndexPositions[i] = index.getInt();
+            }
+        }
+
+        /**
+         * Read the trailer of the cold file: the index of the blocks, the 
+         * number of messages and the number of blocks.
+         */
+        private void loadColdIndex() throws IOException
+        {
+            try (FileChannel channel = FileChannel.open(mCold, StandardOpenOption.READ))
+            {
+                ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+                readFully(channel, trailer, channel.size() - TRAILER_SIZE);
+                trailer.flip();
+                mColdCount = trailer.getInt();
+                int entries = trailer.getInt();
+
+                ByteBuffer index = ByteBuffer.allocate(entries * 8);
+                readFully(channel, index, channel.size() - TRAILER_SIZE - index.capacity());
+                index.flip();
+
+                mIndexSequences = new int[entries];
+                mIndexPositions = new int[entries];
+
+                for (int i = 0; i < entries; i++)
+                {
+                    mIndexSequences[i] = index.getInt();
+                    mIndexPositions[i] = index.getInt();
+                }
+            }
+        }
+
+        private synchronized int getColdCount() throws IOException
+        {
+            open();
+            return mColdCount;
+        }
+
+        /**
+         * Write the records as compressed blocks (one per index entry) in a 
+         * cold file, then read it instead of the records. Only done to full 
+         * segments, by the compactor thread.
+         */
+        private void compact() throws IOException
+        {
+            ByteBuffer map;
+            int[] sequences;
+            int[] positions;
+
+            synchronized (this)
+            {
+                map = open();
+                sequences = mIndexSequences;
+                positions = mIndexPositions;
+            }
+
+            Path temporary = mDirectory.resolve(name(mBase, COLD_SUFFIX + TEMPORARY_SUFFIX));
+            // Every block starts at an index entry (and the first one at 0).
+            boolean isIndexedFromStart = sequences.length > 0 && sequences[0] == 0;
+            int blocks = sequences.length + (isIndexedFromStart ? 0 : 1);
+            ByteBuffer trailer = ByteBuffer.allocate(blocks * 8 + TRAILER_SIZE);
+            Deflater deflater = new Deflater();
+
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                long position = 0;
+
+                for (int block = 0; block < blocks; block++)
+                {
+                    int entry = isIndexedFromStart ? block : block - 1;
+                    int start = entry < 0 ? 0 : positions[entry];
+                    int end = entry + 1 < positions.length ? positions[entry + 1] : map.limit();
+                    byte[] records = new byte[end - start];
+                    map.position(start);
+                    map.get(records);
+
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream(records.length);
+                    byte[] chunk = new byte[8192];
+                    deflater.reset();
+                    deflater.setInput(records);
+                    deflater.finish();
+
+                    while (! deflater.finished())
+                    {
+                        compressed.write(chunk, 0, deflater.deflate(chunk));
+                    }
+
+                    ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+                    header.putInt(records.length).putInt(compressed.size()).flip();
+                    writeFully(channel, header);
+                    writeFully(channel, ByteBuffer.wrap(compressed.toByteArray()));
+
+                    trailer.putInt(entry < 0 ? 0 : sequences[entry]);
+                    trailer.putInt((int) position);
+                    position += BLOCK_HEADER_SIZE + compressed.size();
+                }
+
+                trailer.putInt((int) (mEnd - mBase)).putInt(blocks).flip();
+                writeFully(channel, trailer);
+                channel.force(true);
+            }
+            finally
+            {
+                deflater.end();
+            }
+
+            // Keep the time of the last message (for the retention).
+            Files.setLastModifiedTime(temporary, Files.getLastModifiedTime(mLog));
+            Files.move(temporary, mCold, StandardCopyOption.ATOMIC_MOVE);
+
+            synchronized (this)
+            {
+                mIsCold = true;
+                mMap = null;
+                mIndexSequences = null;
+                mIndexPositions = null;
+            }
+
+            Files.delete(mLog);
+            Files.deleteIfExists(mIndex);
+        }
+
+        /**
+         * Delete the files (once out of the segments).
+         */
+        private void delete() throws IOException
+        {
+            Files.deleteIfExists(mCold);
+            Files.deleteIfExists(mLog);
+            Files.deleteIfExists(mIndex);
+        }
+
+        /**
+         * Return the last index entry at or before the sequence (relative
+         * to the segment), -1 if none.
+         */
+        private int findIndexEntry(int[] sequences, int sequence)
+        {
+            int low = 0;
+            int high = sequences.length - 1;
+            int found = -1;
+
+            while (low <= high)
+            {
+                int middle = (low + high) >>> 1;
+
+                if (sequences[middle] <= sequence)
+                {
+                    found = middle;
+                    low = middle + 1;
+                }
+                else
+                {
+                    high = middle - 1;
+                }
+            }
+
+            return found;
+        }
+    }
+}
@@ -1,10 +1,31 @@
 package crowdchat;
 
-import java.io.Serializable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import java.nio.charset.StandardCharsets;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 
 import java.rmi.*; 
@@ -13,117 +34,792 @@ import java.rmi.*;
 /**
  * Connect the server and all the client together by saving
  * the list of usernames currently used, and the messages sent.
+ * Everything happens in a room (identified by a name of letters, digits,
+ * '-' and '_'): the users only receive the messages of the rooms they 
+ * connected to.
  */
 public interface Linker extends Remote 
 {
+    // Room of the clients not choosing one (and of the history saved 
+    // before the rooms).
+    String DEFAULT_ROOM = "general";
+
     /**
-     * Add the message from sender to the server history. The server will
-     * return the date/time the message was sent (thus all the message dates
-     * will be from the same source i.e. the server).
+     * Add the message from sender to the history of the room. The server will
+     * return the sequence number given to the message (its place in the 
+     * history of the room). The server also gives it its time, so all the
+     * message dates are from the same source (i.e. the server).
+     * The server is then in charge of spreading the message to every
+     * client connected to the room (including the sender), so the sender 
+     * only pays for this call whatever the number of connected users.
+     * If the sender (or every sender together) sent too many messages, the
+     * message is refused with a "RateLimitException" telling when to send 
+     * again.
      */
-    String addMessage(String sender, String message) throws RemoteException;
+    long addMessage(String room, String sender, String message) throws RemoteException;
 
     /**
-     * Return true if the user was correctly created on the server side,
-     * Otherwise return false.
+     * Add several messages from sender at once (same as "addMessage" for 
+     * each one, in order, for the cost of a single call): at most 
+     * "BasicLinker.MAX_BATCH_SIZE". They are all refused if the sender 
+     * cannot send all of them for now.
+     */
+    void addMessages(String room, String sender, ArrayList<String> messages) 
+        throws RemoteException;
+
+    /**
+     * Return true if the user was correctly created in the room on the server 
+     * side, Otherwise return false.
+     * The client stub is kept by the server to deliver the messages of the room.
      * Reasons why the operation could not be successful:
-     * - An user with the same name already exists.
+     * - An user with the same name already exists in the room.
+     */
+    boolean connect(String room, String name, Client client) throws RemoteException;
+
+    /**
+     * Remove the client identified by name from the list of users connected
+     * to the room.
+     */
+    void disconnect(String room, String name) throws RemoteException;
+
+    /**
+     * Keep the user connected to the room for the returned number of 
+     * milliseconds (its lease). The client must call it again before the 
+     * lease expires, otherwise it is disconnected. Return 0 if the user is 
+     * not connected (e.g. its lease already expired).
+     */
+    long renewLease(String room, String name) throws RemoteException;
+
+    ArrayList<String> getClientNames(String room) throws RemoteException;
+
+    /**
+     * Return the users who joined or left the room since the presence 
+     * "version" (the version of the last Presence received, or 0 to get 
+     * every connected user).
      */
-    boolean connect(String name) throws RemoteException;
+    Presence getPresence(String room, long version) throws RemoteException;
+
+    ArrayList<Message> getClientMessages(String room) throws RemoteException;
 
     /**
-     * Remove the client identified by name from the list of connected users.
+     * Return the "count" most recent messages of the history of the room.
      */
-    void disconnect(String name) throws RemoteException;
+    Page getLastMessages(String room, int count) throws RemoteException;
 
-    ArrayList<String> getClientNames() throws RemoteException;
+    /**
+     * Return (at most) the "count" messages sent in the room right before the
+     * message with this sequence number, to page backwards through the history.
+     */
+    Page getMessagesBefore(String room, long sequence, int count) throws RemoteException;
+
+    /**
+     * Return (at most) the "count" messages sent in the room from the message
+     * with this sequence number, to catch up with the history from a known
+     * message (e.g. the last one kept by a client).
+     */
+    Page getMessagesAfter(String room, long sequence, int count) throws RemoteException;
 
-    ArrayList<Message> getClientMessages() throws RemoteException;
+    void setClientMessages(String room, ArrayList<Message> messages) throws RemoteException;
 
-    void setClientMessages(ArrayList<Message> messages) throws RemoteException;
+    /**
+     * Return the messages of the room holding every word of the query (and
+     * sent by sender if not null) sent in [since, until] (epoch milliseconds),
+     * the most recent first: at most limit of them, after the cursor (the 
+     * "next cursor" of the previous hits, or -1 for the first ones).
+     */
+    Hits search(String room, String query, String sender, long since, long until, 
+            int limit, long cursor) throws RemoteException;
 
 
     class BasicLinker implements Linker
     {
-        private final ArrayList<String> mClientNames;
-        private ArrayList<Message> mClientMessages;
+        /**
+         * Where the user names are reserved (shared by several servers).
+         */
+        public interface Namespace
+        {
+            /**
+             * Reserve the name in the room, and return false if already used.
+             */
+            boolean claim(String room, String name) throws RemoteException;
+
+            void release(String room, String name) throws RemoteException;
+        }
+
+        // Constants.
+        public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+        public static final Recipient.OverflowPolicy DEFAULT_OVERFLOW_POLICY
+            = Recipient.OverflowPolicy.DROP_OLDEST;
+        public static final int DEFAULT_BATCH_SIZE = 100;
+        public static final long DEFAULT_BATCH_WINDOW = 5;
+        public static final long DEFAULT_LEASE_DURATION = 30_000;
+        public static final int MAX_SEARCH_LIMIT = 100;
+        // Most messages added by one call.
+        public static final int MAX_BATCH_SIZE = 100;
+        private static final long REAP_INTERVAL = 1000;
+        private static final Pattern ROOM_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+        // The rooms, created on first use.
+        private final Map<String, Room> mRooms;
+        private final int mQueueCapacity;
+        private final Recipient.OverflowPolicy mOverflowPolicy;
+        // At most mBatchSize messages delivered per call, gathered for
+        // at most mBatchWindow milliseconds.
+        private final int mBatchSize;
+        private final long mBatchWindow;
+        // Clients not renewing their lease for this long are disconnected.
+        private volatile long mLeaseDuration;
+        // Number of clients disconnected for not renewing their lease.
+        private final AtomicLong mExpiredSessions;
+        // Messages refused because sent too fast (no limit by default).
+        private volatile RateLimiter mRateLimiter;
+        private final AtomicLong mRejectedMessages;
+        // Time taken by "addMessage(s)", and to queue the messages spread for
+        // every client (with their number).
+        private final Histogram mAddLatencies;
+        private final Histogram mFanOutDurations;
+        private final AtomicLong mMessagesSpread;
+        // Called with every room created (e.g. to load its history).
+        private volatile Consumer<Room> mRoomListener;
+        // Called with the room and name of every client whose lease expired.
+        private volatile BiConsumer<String, String> mExpiryListener;
+        // User names (the ones used on this server only by default).
+        private volatile Namespace mNamespace;
+        // Server ordering the messages (if not this one).
+        private volatile Linker mUpstream;
+        // Deliver to every client on its own (by its Recipient).
+        private final ExecutorService mCallbacks;
+        // Disconnect the clients whose lease expired.
+        private final ScheduledExecutorService mReaper;
 
         public BasicLinker()
         {
-            mClientNames = new ArrayList<>();
-            mClientMessages = new ArrayList<>();
+            this(DEFAULT_QUEUE_CAPACITY, DEFAULT_OVERFLOW_POLICY, 
+                    DEFAULT_BATCH_SIZE, DEFAULT_BATCH_WINDOW);
+        }
+
+        /**
+         * At most queueCapacity messages wait to be delivered to a client,
+         * then policy tells what to do with the new ones. The messages are 
+         * delivered batchSize at a time at most, a batch waiting at most 
+         * batchWindow milliseconds to fill up (a batchSize of 1 delivers the 
+         * messages one by one).
+         */
+        public BasicLinker(int queueCapacity, Recipient.OverflowPolicy policy, 
+                int batchSize, long batchWindow)
+        {
+            mRooms = new ConcurrentHashMap<>();
+            mQueueCapacity = queueCapacity;
+            mOverflowPolicy = policy;
+            mBatchSize = batchSize;
+            mBatchWindow = batchWindow;
+            mLeaseDuration = DEFAULT_LEASE_DURATION;
+            mExpiredSessions = new AtomicLong();
+            mRateLimiter = new RateLimiter(0, 0, 0, 0);
+            mRejectedMessages = new AtomicLong();
+            mAddLatencies = new Histogram();
+            mFanOutDurations = new Histogram();
+            mMessagesSpread = new AtomicLong();
+            mRoomListener = room -> {};
+            mExpiryListener = (room, name) -> {};
+            mNamespace = new Namespace()
+            {
+                @Override
+                public boolean claim(String room, String name)
+                {
+                    // Checked by the room.
+                    return true;
+                }
+
+                @Override
+                public void release(String room, String name)
+                {
+                }
+            };
+            mUpstream = null;
+            // One worker per busy client (a stuck client only holds its own).
+            mCallbacks = Executors.newCachedThreadPool(
+                    r -> createDaemonThread(r, "crowdchat-callback"));
+            mReaper = Executors.newSingleThreadScheduledExecutor(
+                    r -> createDaemonThread(r, "crowdchat-reaper"));
+            mReaper.scheduleWithFixedDelay(this::reap, REAP_INTERVAL, REAP_INTERVAL, 
+                    TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public long addMessage(String room, String sender, String message) 
+            throws RemoteException
+        {
+            Linker upstream = mUpstream;
+
+            if (upstream == null)
+            {
+                // Limited by the leader only, for the messages of every node.
+                admit(room, sender, 1);
+            }
+
+            long start = System.nanoTime();
+
+            try
+            {
+                if (upstream != null)
+                {
+                    // Ordered there, and then sent back to this server.
+                    return upstream.addMessage(room, sender, message);
+                }
+
+                return getRoom(room).addMessage(sender, message).getSequence(); 
+            }
+            finally
+            {
+                mAddLatencies.record(System.nanoTime() - start);
+            }
         }
 
         @Override
-        public String addMessage(String sender, String message) throws RemoteException
+        public void addMessages(String room, String sender, ArrayList<String> messages) 
+            throws RemoteException
+        {
+            if (messages.size() > MAX_BATCH_SIZE)
+            {
+                throw new RemoteException("At most " + MAX_BATCH_SIZE 
+                        + " messages can be sent at once.");
+            }
+
+            Linker upstream = mUpstream;
+
+            if (upstream == null)
+            {
+                // Limited by the leader only, for the messages of every node.
+                admit(room, sender, messages.size());
+            }
+
+            long start = System.nanoTime();
+
+            try
+            {
+                if (upstream != null)
+                {
+                    upstream.addMessages(room, sender, messages);
+                    return ;
+                }
+
+                getRoom(room).addMessages(sender, messages);
+            }
+            finally
+            {
+                mAddLatencies.record(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Take count messages of sender from the rate limits, or refuse them.
+         */
+        private void admit(String room, String sender, int count) throws RateLimitException
         {
-            // Constants.
-            String DATE_FORMAT = "HH:mm:ss";
-            String time = LocalDateTime.now()
-                .format(DateTimeFormatter.ofPattern(DATE_FORMAT));
-            mClientMessages.add(new Message(time, sender, message));
+            long wait = mRateLimiter.acquire(room, sender, count);
 
-            return time; 
+            if (wait > 0)
+            {
+                mRejectedMessages.addAndGet(count);
+                throw new RateLimitException(wait);
+            }
         }
 
         @Override
-        public boolean connect(String name) throws RemoteException 
+        public boolean connect(String room, String name, Client client) throws RemoteException 
         {
-            if (mClientNames.contains(name))
+            Room r = getRoom(room);
+
+            if (! mNamespace.claim(room, name))
+            {
+                return false; 
+            }
+
+            if (! r.connect(name, client, mLeaseDuration))
             {
+                mNamespace.release(room, name);
                 return false; 
             }
 
-            System.out.println("Client joining: " + name); 
-            mClientNames.add(name);
+            System.out.println("Client joining: " + name + " (" + room + ")"); 
             return true;
         }
 
         @Override
-        public void disconnect(String name) throws RemoteException
+        public void disconnect(String room, String name) throws RemoteException
         {
-            System.out.println("Client exiting: " + name); 
-            mClientNames.remove(name);
+            System.out.println("Client exiting: " + name + " (" + room + ")"); 
+            getRoom(room).disconnect(name);
+        }
+
+        /**
+         * Disconnect the user only if still connected with this client (e.g.
+         * its connection was lost, but it may already be connected again).
+         */
+        public void disconnect(String room, String name, Client client) throws RemoteException
+        {
+            if (getRoom(room).disconnect(name, client))
+            {
+                System.out.println("Client gone: " + name + " (" + room + ")"); 
+            }
         }
 
         @Override
-        public ArrayList<String> getClientNames() throws RemoteException
+        public long renewLease(String room, String name) throws RemoteException
+        {
+            long duration = mLeaseDuration;
+            return getRoom(room).renewLease(name, duration) ? duration : 0;
+        }
+
+        /**
+         * Set for how long (milliseconds) a client stays connected without 
+         * renewing its lease.
+         */
+        public void setLeaseDuration(long duration)
+        {
+            mLeaseDuration = duration;
+        }
+
+        /**
+         * Set the limits of the messages added by every sender, and by all
+         * of them (none by default). Only enforced by a leader: a follower
+         * forwards the messages as they come.
+         */
+        public void setRateLimiter(RateLimiter limiter)
+        {
+            mRateLimiter = limiter;
+        }
+
+        /**
+         * Set the function called with the room and name of every client 
+         * disconnected because its lease expired (e.g. to unbind it).
+         */
+        public void setExpiryListener(BiConsumer<String, String> listener)
         {
-            return mClientNames;
+            mExpiryListener = listener;
+        }
+
+        /**
+         * Set where the user names are reserved (by default, the names are
+         * only checked against the users of this server).
+         */
+        public void setNamespace(Namespace namespace)
+        {
+            mNamespace = namespace;
+        }
+
+        /**
+         * Send the new messages to upstream (which orders them and sends 
+         * them back with "Room.replicate") instead of adding them to the 
+         * rooms of this server.
+         */
+        public void setUpstream(Linker upstream)
+        {
+            mUpstream = upstream;
+        }
+
+        /**
+         * Add to every room the messages ordered upstream since its last one
+         * (e.g. missed while upstream was unreachable).
+         */
+        public void catchUp()
+        {
+            mRooms.values().forEach(
+                    room ->
+                    {
+                        try
+                        {
+                            catchUp(room);
+                        }
+                        catch (Exception e)
+                        {
+                            System.err.println("Error: cannot catch up the room " 
+                                    + room.getId() + ": " + e);
+                        }
+                    }
+            );
+        }
+
+        /**
+         * Add to the room the messages ordered upstream since its last one.
+         */
+        public void catchUp(Room room) throws RemoteException
+        {
+            Linker upstream = mUpstream;
+
+            if (upstream != null)
+            {
+                room.catchUp(upstream);
+            }
+        }
+
+        /**
+         * Set the function called with every room when created, before it is
+         * used (e.g. to load its history and save its new messages).
+         */
+        public void setRoomListener(Consumer<Room> listener)
+        {
+            mRoomListener = listener;
+        }
+
+        /**
+         * Return the number of clients disconnected because their lease expired.
+         */
+        public long getExpiredSessions()
+        {
+            return mExpiredSessions.get();
+        }
+
+        /**
+         * Return the number of messages refused because sent too fast.
+         */
+        public long getRejectedMessages()
+        {
+            return mRejectedMessages.get();
+        }
+
+        /**
+         * Disconnect every client whose lease expired (crashed, or lost its
+         * network), so that no message waits for it anymore and its name 
+         * can be used again.
+         */
+        private void reap()
+        {
+            mRateLimiter.sweep();
+            mRooms.forEach(
+                    (id, room) -> room.reap().forEach(
+                            name -> 
+                            {
+                                mExpiredSessions.incrementAndGet();
+                                System.out.println("Client expired: " + name + " (" + id + ")"); 
+
+                                try
+                                {
+                                    mExpiryListener.accept(id, name);
+                                }
+                                catch (Exception e)
+                                {
+                                    System.err.println("Error: " + e);
+                                }
+                            }
+                    )
+            );
         }
 
         @Override
-        public ArrayList<Message> getClientMessages() throws RemoteException
+        public ArrayList<String> getClientNames(String room) throws RemoteException
         {
-            return mClientMessages;
+            return getRoom(room).getClientNames();
         }
 
         @Override
-        public void setClientMessages(ArrayList<Message> messages) throws RemoteException
+        public Presence getPresence(String room, long version) throws RemoteException
         {
-            mClientMessages = messages;
+            return getRoom(room).getPresence(version);
+        }
+
+        @Override
+        public ArrayList<Message> getClientMessages(String room) throws RemoteException
+        {
+            return getRoom(room).getClientMessages();
+        }
+
+        @Override
+        public Page getLastMessages(String room, int count) throws RemoteException
+        {
+            return getMessagesBefore(room, Long.MAX_VALUE, count);
+        }
+
+        @Override
+        public Page getMessagesBefore(String room, long sequence, int count) 
+            throws RemoteException
+        {
+            return getRoom(room).getMessagesBefore(sequence, count);
+        }
+
+        @Override
+        public Page getMessagesAfter(String room, long sequence, int count) 
+            throws RemoteException
+        {
+            return getRoom(room).getMessagesAfter(sequence, count);
+        }
+
+        @Override
+        public void setClientMessages(String room, ArrayList<Message> messages) 
+            throws RemoteException
+        {
+            MessageLog log = new MessageLog();
+            log.appendAll(messages);
+            getRoom(room).setHistory(log, (from, to) -> new ArrayList<>());
+        }
+
+        @Override
+        public Hits search(String room, String query, String sender, long since, long until,
+                int limit, long cursor) throws RemoteException
+        {
+            Linker upstream = mUpstream;
+
+            if (upstream != null)
+            {
+                // Indexed there.
+                return upstream.search(room, query, sender, since, until, limit, cursor);
+            }
+
+            return getRoom(room).search(query, sender, since, until, 
+                    Math.max(1, Math.min(limit, MAX_SEARCH_LIMIT)), cursor);
+        }
+
+        /**
+         * Return the room, created (and given to the room listener) if used 
+         * for the first time.
+         */
+        public Room getRoom(String id) throws RemoteException
+        {
+            Room room = mRooms.get(id);
+
+            if (room != null)
+            {
+                return room;
+            }
+
+            if (id == null || ! ROOM_PATTERN.matcher(id).matches())
+            {
+                throw new RemoteException("Invalid room name \"" + id + "\".");
+            }
+
+            // Only locks this room (and the ones sharing its bin) during the creation.
+            return mRooms.computeIfAbsent(id, this::createRoom);
+        }
+
+        private Room createRoom(String id)
+        {
+            Room room = new Room(id, mQueueCapacity, mOverflowPolicy, 
+                    mBatchSize, mBatchWindow, mCallbacks);
+            room.setDepartureListener(name -> releaseName(id, name));
+            room.setFanOutListener(
+                    (count, nanos) -> 
+                    {
+                        mMessagesSpread.addAndGet(count);
+                        mFanOutDurations.record(nanos);
+                    }
+            );
+            mRoomListener.accept(room);
+            return room;
+        }
+
+        /**
+         * Make the name available again.
+         */
+        private void releaseName(String room, String name)
+        {
+            try
+            {
+                mNamespace.release(room, name);
+            }
+            catch (Exception e)
+            {
+                System.err.println("Error: cannot release the name \"" + name 
+                        + "\" (" + room + ").");
+            }
+        }
+
+        /**
+         * Return the number of messages waiting to be delivered, per client
+         * ("room/name").
+         */
+        public Map<String, Integer> getQueueDepths()
+        {
+            Map<String, Integer> depths = new HashMap<>();
+            mRooms.forEach(
+                    (id, room) -> room.getQueueDepths().forEach(
+                            (name, depth) -> depths.put(id + "/" + name, depth))
+            );
+            return depths;
+        }
+
+        /**
+         * Return the number of messages dropped (full queue), per client 
+         * ("room/name").
+         */
+        public Map<String, Long> getDroppedMessages()
+        {
+            Map<String, Long> dropped = new HashMap<>();
+            mRooms.forEach(
+                    (id, room) -> room.getDroppedMessages().forEach(
+                            (name, count) -> dropped.put(id + "/" + name, count))
+            );
+            return dropped;
+        }
+
+        /**
+         * Return the number of clients disconnected for being too slow.
+         */
+        public long getSlowDisconnections()
+        {
+            return mRooms.values().stream().mapToLong(Room::getSlowDisconnections).sum();
+        }
+
+        /**
+         * Return the number of failed calls to the clients (messages or
+         * notifications).
+         */
+        public long getFailedCalls()
+        {
+            return mRooms.values().stream().mapToLong(Room::getFailedCalls).sum();
+        }
+
+        public int getClientCount()
+        {
+            return mRooms.values().stream().mapToInt(Room::getClientCount).sum();
+        }
+
+        /**
+         * Return the number of messages of the history of every room.
+         */
+        public long getHistorySize()
+        {
+            return mRooms.values().stream().mapToLong(Room::getHistorySize).sum();
+        }
+
+        /**
+         * Return the number of messages spread to the clients since started.
+         */
+        public long getMessagesSpread()
+        {
+            return mMessagesSpread.get();
+        }
+
+        /**
+         * Return the durations of the "addMessage(s)" calls.
+         */
+        public Histogram getAddLatencies()
+        {
+            return mAddLatencies;
+        }
+
+        /**
+         * Return the durations of the messages queuing for every client of
+         * their room.
+         */
+        public Histogram getFanOutDurations()
+        {
+            return mFanOutDurations;
+        }
+
+        private static Thread createDaemonThread(Runnable runnable, String name)
+        {
+            Thread thread = new Thread(runnable, name);
+            // Do not keep the server alive once RMI is done.
+            thread.setDaemon(true);
+            return thread;
         }
     }
 
 
-    class Message implements Serializable
+    /**
+     * A message sent by a user. Written by hand (not with the default 
+     * serialization) to keep the small chat messages small on the wire.
+     */
+    class Message implements Externalizable
     {
-        private static final long serialVersionUID = 667363824879925614L;
+        private static final long serialVersionUID = 2716538716947051882L;
+
+        // Constants.
+        // Version of the "write" format.
+        private static final int FORMAT = 1;
+        // Longer strings and lists are refused (the length is likely corrupted).
+        private static final int MAX_LENGTH = 16 << 20;
+        private static final DateTimeFormatter TIME_FORMAT = 
+            DateTimeFormatter.ofPattern("HH:mm:ss");
+        private static final DateTimeFormatter DATE_TIME_FORMAT = 
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
-        private final String mTime;
-        private final String mSender;
-        private final String mContent;
+        // Place in the history of its room, given by the server (-1 until
+        // added to it).
+        private long mSequence;
+        // First place it stands for: less than the sequence number when
+        // several messages were coalesced into this one (see "Recipient").
+        private long mFirstSequence;
+        // Epoch milliseconds, given by the server.
+        private long mTimestamp;
+        private String mSender;
+        private String mContent;
+
+        /**
+         * Only for the deserialization.
+         */
+        public Message()
+        {
+        }
 
-        private Message(String time, String sender, String content)
+        Message(long timestamp, String sender, String content)
         {
-            mTime = time;
+            this(-1, timestamp, sender, content);
+        }
+
+        Message(long sequence, long timestamp, String sender, String content)
+        {
+            mSequence = sequence;
+            mFirstSequence = sequence;
+            mTimestamp = timestamp;
             mSender = sender;
             mContent = content;
         }
 
+        public long getSequence()
+        {
+            return mSequence;
+        }
+
+        /**
+         * Set the sequence number when the message is added to the history
+         * (once, before the message is readable by others).
+         */
+        void setSequence(long sequence)
+        {
+            mSequence = sequence;
+            mFirstSequence = sequence;
+        }
+
+        /**
+         * Return the sequence number of the first message this one stands
+         * for: the same as "getSequence", unless messages were coalesced
+         * (from this one to the sequence number, included).
+         */
+        public long getFirstSequence()
+        {
+            return mFirstSequence;
+        }
+
+        void setFirstSequence(long sequence)
+        {
+            mFirstSequence = sequence;
+        }
+
+        public long getTimestamp()
+        {
+            return mTimestamp;
+        }
+
+        /**
+         * Return the time of the day the message was sent, as "HH:mm:ss" 
+         * (formatted only when displayed).
+         */
         public String getTime()
         {
-            return mTime;
+            return LocalDateTime.ofInstant(Instant.ofEpochMilli(mTimestamp), 
+                    ZoneId.systemDefault()).format(TIME_FORMAT);
+        }
+
+        /**
+         * Return the date and time the message was sent, as 
+         * "yyyy-MM-dd HH:mm:ss".
+         */
+        public String getDateTime()
+        {
+            return LocalDateTime.ofInstant(Instant.ofEpochMilli(mTimestamp), 
+                    ZoneId.systemDefault()).format(DATE_TIME_FORMAT);
         }
 
         public String getSender()
@@ -135,5 +831,522 @@ public interface Linker extends Remote
         {
             return mContent;
         }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException
+        {
+            out.writeLong(mSequence);
+            writeVarLong(out, mSequence - mFirstSequence);
+            out.writeLong(mTimestamp);
+            writeString(out, mSender);
+            writeString(out, mContent);
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException
+        {
+            mSequence = in.readLong();
+            mFirstSequence = mSequence - readVarLong(in);
+            mTimestamp = in.readLong();
+            mSender = readString(in);
+            mContent = readString(in);
+        }
+
+        /**
+         * Write the message in a compact binary form (used by the journal,
+         * where the sequence number is the place of the record).
+         */
+        void write(DataOutput out) throws IOException
+        {
+            out.writeByte(FORMAT);
+            out.writeLong(mTimestamp);
+            writeString(out, mSender);
+            writeString(out, mContent);
+        }
+
+        /**
+         * Read a message written by "write".
+         */
+        static Message read(DataInput in) throws IOException
+        {
+            int format = in.readUnsignedByte();
+
+            if (format != FORMAT)
+            {
+                throw new IOException("Unknown message format " + format + ".");
+            }
+
+            return new Message(in.readLong(), readString(in), readString(in));
+        }
+
+        /**
+         * Write the messages, with the sender names written once in a 
+         * dictionary and the sequence numbers and timestamps as differences
+         * (used by the history and batch transfers). The messages coalesced
+         * by one are counted as well (0 for most).
+         */
+        static void writeAll(DataOutput out, List<Message> messages) throws IOException
+        {
+            HashMap<String, Integer> senders = new HashMap<>();
+
+            for (Message m : messages)
+            {
+                senders.putIfAbsent(m.mSender, senders.size());
+            }
+
+            String[] dictionary = new String[senders.size()];
+            senders.forEach((sender, index) -> dictionary[index] = sender);
+
+            writeVarLong(out, dictionary.length);
+
+            for (String sender : dictionary)
+            {
+                writeString(out, sender);
+            }
+
+            writeVarLong(out, messages.size());
+            long sequence = 0;
+            long timestamp = 0;
+
+            for (Message m : messages)
+            {
+                writeVarLong(out, zigZag(m.mSequence - sequence));
+                writeVarLong(out, m.mSequence - m.mFirstSequence);
+                writeVarLong(out, zigZag(m.mTimestamp - timestamp));
+                writeVarLong(out, senders.get(m.mSender));
+                writeString(out, m.mContent);
+                sequence = m.mSequence;
+                timestamp = m.mTimestamp;
+            }
+        }
+
+        /**
+         * Read messages written by "writeAll".
+         */
+        static ArrayList<Message> readAll(DataInput in) throws IOException
+        {
+            String[] dictionary = new String[readLength(in)];
+
+            for (int i = 0; i < dictionary.length; i++)
+            {
+                dictionary[i] = readString(in);
+            }
+
+            int count = readLength(in);
+            ArrayList<Message> messages = new ArrayList<>(count);
+            long sequence = 0;
+            long timestamp = 0;
+
+            for (int i = 0; i < count; i++)
+            {
+                sequence += unZigZag(readVarLong(in));
+                long coalesced = readVarLong(in);
+                timestamp += unZigZag(readVarLong(in));
+                long sender = readVarLong(in);
+
+                if (sender < 0 || sender >= dictionary.length)
+                {
+                    throw new IOException("Malformed sender " + sender + ".");
+                }
+
+                Message m = new Message(sequence, timestamp, 
+                        dictionary[(int) sender], readString(in));
+                m.mFirstSequence = sequence - coalesced;
+                messages.add(m);
+            }
+
+            return messages;
+        }
+
+        static void writeString(DataOutput out, String s) throws IOException
+        {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(out, bytes.length);
+            out.write(bytes);
+        }
+
+        static String readString(DataInput in) throws IOException
+        {
+            byte[] bytes = new byte[readLength(in)];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Read the length of a string or a list, checked by "checkLength".
+         */
+        static int readLength(DataInput in) throws IOException
+        {
+            return checkLength(in, readVarLong(in));
+        }
+
+        /**
+         * Return the length read (of a string or a list) if it can be right,
+         * so that a corrupted or crafted one cannot make a huge allocation: 
+         * at most MAX_LENGTH, and at most the bytes left when reading a 
+         * frame (every byte or item takes at least one).
+         */
+        static int checkLength(DataInput in, long length) throws IOException
+        {
+            long max = in instanceof SocketLinker.FrameInput 
+                ? Math.min(MAX_LENGTH, ((SocketLinker.FrameInput) in).left()) : MAX_LENGTH;
+
+            if (length < 0 || length > max)
+            {
+                throw new IOException("Malformed length " + length + ".");
+            }
+
+            return (int) length;
+        }
+
+        /**
+         * Write 7 bits per byte (high bit set when more bytes follow).
+         */
+        static void writeVarLong(DataOutput out, long value) throws IOException
+        {
+            while ((value & ~0x7FL) != 0)
+            {
+                out.writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+
+            out.writeByte((int) value);
+        }
+
+        static long readVarLong(DataInput in) throws IOException
+        {
+            long value = 0;
+
+            for (int shift = 0; shift < 64; shift += 7)
+            {
+                int b = in.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+
+                if ((b & 0x80) == 0)
+                {
+                    return value;
+                }
+            }
+
+            throw new IOException("Malformed variable length number.");
+        }
+
+        /**
+         * Map signed numbers to unsigned ones (small negative numbers stay small).
+         */
+        private static long zigZag(long value)
+        {
+            return (value << 1) ^ (value >> 63);
+        }
+
+        private static long unZigZag(long value)
+        {
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+
+
+    /**
+     * A contiguous part of the message history.
+     */
+    class Page implements Externalizable
+    {
+        private static final long serialVersionUID = 3214094398264307562L;
+
+        // Sequence number of the first message.
+        private long mFirstSequence;
+        private ArrayList<Message> mMessages;
+        // False if the first message is the oldest kept by the server.
+        private boolean mHasOlder;
+
+        /**
+         * Only for the deserialization.
+         */
+        public Page()
+        {
+        }
+
+        Page(long firstSequence, ArrayList<Message> messages)
+        {
+            this(firstSequence, messages, firstSequence > 0);
+        }
+
+        Page(long firstSequence, ArrayList<Message> messages, boolean hasOlder)
+        {
+            mFirstSequence = firstSequence;
+            mMessages = messages;
+            mHasOlder = hasOlder;
+        }
+
+        public long getFirstSequence()
+        {
+            return mFirstSequence;
+        }
+
+        public ArrayList<Message> getMessages()
+        {
+            return mMessages;
+        }
+
+        /**
+         * Return true if older messages can be fetched before this page.
+         */
+        public boolean hasOlder()
+        {
+            return mHasOlder;
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException
+        {
+            write(out);
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException
+        {
+            read(in);
+        }
+
+        /**
+         * Write the page (used by RMI and the socket transport).
+         */
+        void write(DataOutput out) throws IOException
+        {
+            out.writeLong(mFirstSequence);
+            out.writeBoolean(mHasOlder);
+            Message.writeAll(out, mMessages);
+        }
+
+        void read(DataInput in) throws IOException
+        {
+            mFirstSequence = in.readLong();
+            mHasOlder = in.readBoolean();
+            mMessages = Message.readAll(in);
+        }
+    }
+
+
+    /**
+     * Messages found by "search", the most recent first, with the cursor to
+     * get the next ones.
+     */
+    class Hits implements Externalizable
+    {
+        private static final long serialVersionUID = 6190378413295730514L;
+
+        private ArrayList<Message> mMessages;
+        // Cursor of the next hits, -1 if none.
+        private long mNextCursor;
+
+        /**
+         * Only for the deserialization.
+         */
+        public Hits()
+        {
+        }
+
+        Hits(ArrayList<Message> messages, long nextCursor)
+        {
+            mMessages = messages;
+            mNextCursor = nextCursor;
+        }
+
+        public ArrayList<Message> getMessages()
+        {
+            return mMessages;
+        }
+
+        public long getNextCursor()
+        {
+            return mNextCursor;
+        }
+
+        public boolean hasMore()
+        {
+            return mNextCursor >= 0;
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException
+        {
+            write(out);
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException
+        {
+            read(in);
+        }
+
+        /**
+         * Write the hits (used by RMI and the socket transport).
+         */
+        void write(DataOutput out) throws IOException
+        {
+            out.writeLong(mNextCursor);
+            Message.writeAll(out, mMessages);
+        }
+
+        void read(DataInput in) throws IOException
+        {
+            mNextCursor = in.readLong();
+            mMessages = Message.readAll(in);
+        }
+    }
+
+
+    /**
+     * The users who joined or left since a presence version (or all the 
+     * connected users if "isSnapshot").
+     */
+    class Presence implements Externalizable
+    {
+        private static final long serialVersionUID = 5601947356112843617L;
+
+        private long mVersion;
+        private boolean mIsSnapshot;
+        private ArrayList<String> mJoined;
+        private ArrayList<String> mLeft;
+
+        /**
+         * Only for the deserialization.
+         */
+        public Presence()
+        {
+        }
+
+        Presence(long version, boolean isSnapshot, ArrayList<String> joined, 
+                ArrayList<String> left)
+        {
+            mVersion = version;
+            mIsSnapshot = isSnapshot;
+            mJoined = joined;
+            mLeft = left;
+        }
+
+        /**
+         * Return the version to ask the next changes from.
+         */
+        public long getVersion()
+        {
+            return mVersion;
+        }
+
+        /**
+         * Return true if "getJoined" is every connected user (the users not
+         * in it are not connected).
+         */
+        public boolean isSnapshot()
+        {
+            return mIsSnapshot;
+        }
+
+        public ArrayList<String> getJoined()
+        {
+            return mJoined;
+        }
+
+        public ArrayList<String> getLeft()
+        {
+            return mLeft;
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException
+        {
+            write(out);
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException
+        {
+            read(in);
+        }
+
+        /**
+         * Write the presence (used by RMI and the socket transport).
+         */
+        void write(DataOutput out) throws IOException
+        {
+            out.writeLong(mVersion);
+            out.writeBoolean(mIsSnapshot);
+            writeNames(out, mJoined);
+            writeNames(out, mLeft);
+        }
+
+        void read(DataInput in) throws IOException
+        {
+            mVersion = in.readLong();
+            mIsSnapshot = in.readBoolean();
+            mJoined = readNames(in);
+            mLeft = readNames(in);
+        }
+
+        static void writeNames(DataOutput out, List<String> names) 
+            throws IOException
+        {
+            out.writeInt(names.size());
+
+            for (String name : names)
+            {
+                out.writeUTF(name);
+            }
+        }
+
+        static ArrayList<String> readNames(DataInput in) throws IOException
+        {
+            int size = Message.checkLength(in, in.readInt());
+            ArrayList<String> names = new ArrayList<>(size);
+
+            for (int i = 0; i < size; i++)
+            {
+                names.add(in.readUTF());
+            }
+
+            return names;
+        }
+    }
+
+
+    /**
+     * Thrown when messages are refused because their sender (or every 
+     * sender together) sent too many: they can be sent again after 
+     * "getRetryAfter" milliseconds. Through RMI, the caller gets it as the
+     * cause of a "ServerException" (see "find").
+     */
+    class RateLimitException extends RemoteException
+    {
+        private static final long serialVersionUID = 7358410229314776021L;
+
+        private final long mRetryAfter;
+
+        public RateLimitException(long retryAfter)
+        {
+            super("Too many messages, retry after " + retryAfter + " ms.");
+            mRetryAfter = retryAfter;
+        }
+
+        public long getRetryAfter()
+        {
+            return mRetryAfter;
+        }
+
+        /**
+         * Return the rate limit refusing the call which threw e (maybe 
+         * wrapped by RMI, once per server on the way), null if none.
+         */
+        public static RateLimitException find(Throwable e)
+        {
+            for (; e != null; e = e.getCause())
+            {
+                if (e instanceof RateLimitException)
+                {
+                    return (RateLimitException) e;
+                }
+            }
+
+            return null;
+        }
     }
 }
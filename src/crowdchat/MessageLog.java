@@ -0,0 +1,241 @@
+package crowdchat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Append-only and thread-safe log of the messages sent on the server.
+ * Every message gets the sequence number of its slot in the log (the log
+ * can start after older messages kept elsewhere, at a base sequence number).
+ * Writers only reserve a slot with a single atomic tail, so they never
+ * block each other. Readers only see the longest fully written prefix of
+ * the log, so they always get a consistent (ordered and without holes)
+ * snapshot without blocking the writers.
+ * The oldest messages can be trimmed once kept elsewhere (e.g. in a
+ * journal), so the log only holds the recent ones.
+ */
+public class MessageLog
+{
+    // Constants.
+    private static final int SEGMENT_BITS = 12;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+    private static final int INITIAL_SEGMENTS = 16;
+
+    // Sequence number of the first slot.
+    private final long mBase;
+    // Next slot to reserve.
+    private final AtomicLong mTail;
+    // Every slot below this one is written (only a hint, may lag behind).
+    private final AtomicLong mPublished;
+    // First slot kept (the ones before are trimmed).
+    private volatile long mFirst;
+    // The slots, allocated segment per segment.
+    private volatile AtomicReferenceArray<AtomicReferenceArray<Linker.Message>> mSegments;
+
+    public MessageLog()
+    {
+        this(0);
+    }
+
+    public MessageLog(long base)
+    {
+        mBase = base;
+        mTail = new AtomicLong();
+        mPublished = new AtomicLong();
+        mSegments = new AtomicReferenceArray<>(INITIAL_SEGMENTS);
+    }
+
+    /**
+     * Add the message at the end of the log, give it its sequence number and
+     * return it.
+     */
+    public long append(Linker.Message message)
+    {
+        long index = mTail.getAndIncrement();
+        message.setSequence(mBase + index);
+        getSegment(index).set((int) (index & SEGMENT_MASK), message);
+        return mBase + index;
+    }
+
+    public long getBase()
+    {
+        return mBase;
+    }
+
+    /**
+     * Return the sequence number following the last readable message.
+     */
+    public long getEnd()
+    {
+        return mBase + size();
+    }
+
+    /**
+     * Return the number of messages readable from the log.
+     */
+    public long size()
+    {
+        long published = mPublished.get();
+        long tail = mTail.get();
+
+        // Walk over the slots written since the last call.
+        while (published < tail && read(published) != null)
+        {
+            published++;
+        }
+
+        return mPublished.accumulateAndGet(published, Math::max);
+    }
+
+    /**
+     * Return the sequence number of the first message kept (getBase() if
+     * none was trimmed).
+     */
+    public long getFirst()
+    {
+        return mBase + mFirst;
+    }
+
+    /**
+     * Forget the messages before this sequence number, once readable from
+     * elsewhere. Their memory is released a segment at a time. A snapshot
+     * taken meanwhile may miss some of them: check "getFirst" after it.
+     */
+    public synchronized void trim(long sequence)
+    {
+        long first = Math.min(sequence - mBase, size());
+        long previous = mFirst;
+
+        if (first <= previous)
+        {
+            return ;
+        }
+
+        mFirst = first;
+        AtomicReferenceArray<AtomicReferenceArray<Linker.Message>> segments = mSegments;
+
+        for (long index = previous >>> SEGMENT_BITS; index < first >>> SEGMENT_BITS; index++)
+        {
+            segments.set((int) index, null);
+        }
+    }
+
+    /**
+     * Return the message with this sequence number (which must be in
+     * [getFirst(), getEnd()[).
+     */
+    public Linker.Message get(long sequence)
+    {
+        return read(sequence - mBase);
+    }
+
+    /**
+     * Return a copy of the messages kept with a sequence number in 
+     * [from, to[.
+     */
+    public ArrayList<Linker.Message> snapshot(long from, long to)
+    {
+        long begin = Math.max(mFirst, from - mBase);
+        long end = Math.min(to - mBase, size());
+        ArrayList<Linker.Message> messages = new ArrayList<>((int) Math.max(0, end - begin));
+
+        for (long index = begin; index < end; index++)
+        {
+            Linker.Message m = read(index);
+
+            // (Unless trimmed meanwhile.)
+            if (m != null)
+            {
+                messages.add(m);
+            }
+        }
+
+        return messages;
+    }
+
+    /**
+     * Return a copy of every readable message.
+     */
+    public ArrayList<Linker.Message> snapshot()
+    {
+        return snapshot(0, Long.MAX_VALUE);
+    }
+
+    public void appendAll(List<Linker.Message> messages)
+    {
+        messages.forEach(this::append);
+    }
+
+    private Linker.Message read(long slot)
+    {
+        int index = (int) (slot >>> SEGMENT_BITS);
+        AtomicReferenceArray<AtomicReferenceArray<Linker.Message>> segments = mSegments;
+
+        if (index >= segments.length() || segments.get(index) == null)
+        {
+            // Reserved but not yet written.
+            return null;
+        }
+
+        return segments.get(index).get((int) (slot & SEGMENT_MASK));
+    }
+
+    private AtomicReferenceArray<Linker.Message> getSegment(long slot)
+    {
+        int index = (int) (slot >>> SEGMENT_BITS);
+        AtomicReferenceArray<AtomicReferenceArray<Linker.Message>> segments = mSegments;
+
+        if (index < segments.length())
+        {
+            AtomicReferenceArray<Linker.Message> segment = segments.get(index);
+
+            if (segment != null)
+            {
+                // Fast path: every writer but one per segment.
+                return segment;
+            }
+        }
+
+        return allocateSegment(index);
+    }
+
+    /**
+     * Create the segment (and grow the segment table if needed). Only done
+     * once every SEGMENT_SIZE messages, so the lock is not contended.
+     */
+    private synchronized AtomicReferenceArray<Linker.Message> allocateSegment(int index)
+    {
+        AtomicReferenceArray<AtomicReferenceArray<Linker.Message>> segments = mSegments;
+
+        if (index >= segments.length())
+        {
+            int length = segments.length();
+
+            while (length <= index)
+            {
+                length *= 2;
+            }
+
+            AtomicReferenceArray<AtomicReferenceArray<Linker.Message>> grown
+                = new AtomicReferenceArray<>(length);
+
+            for (int i = 0; i < segments.length(); i++)
+            {
+                grown.set(i, segments.get(i));
+            }
+
+            mSegments = segments = grown;
+        }
+
+        if (segments.get(index) == null)
+        {
+            segments.set(index, new AtomicReferenceArray<>(SEGMENT_SIZE));
+        }
+
+        return segments.get(index);
+    }
+}
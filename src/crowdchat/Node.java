@@ -0,0 +1,362 @@
+package crowdchat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+
+/**
+ * Link the servers of a cluster together. One server (the leader) orders
+ * every message and keeps the user names; the other ones (the followers)
+ * send it the messages of their clients, and get back every message in
+ * the leader order, so all the servers have the same history.
+ */
+public interface Node extends Remote
+{
+    /**
+     * Send every message ordered by this server to the follower "id"
+     * (replacing the previous follower with this id), for a lease renewed
+     * with "renew". If isRestarted, the names reserved by the follower
+     * before are not used anymore (else, e.g. joining again after its lease
+     * expired, they are kept). Called by a follower.
+     */
+    void register(String id, Node follower, boolean isRestarted) throws RemoteException;
+
+    /**
+     * Extend the lease of the follower "id". Return false if not registered
+     * anymore (lease expired, or restarted leader): it has to register
+     * again. Called by a follower.
+     */
+    boolean renew(String id) throws RemoteException;
+
+    /**
+     * Reserve the name in the room for the server "node", and return false
+     * if already used (on any server). Called by a follower.
+     */
+    boolean claim(String room, String name, String node) throws RemoteException;
+
+    /**
+     * Make the name reserved by the server "node" available again. Called
+     * by a follower.
+     */
+    void release(String room, String name, String node) throws RemoteException;
+
+    /**
+     * Add messages of the room ordered by the leader (the first one with
+     * this sequence number). Called by the leader, in order.
+     */
+    void deliver(String room, long firstSequence, ArrayList<Linker.Message> messages)
+        throws RemoteException;
+
+
+    class BasicNode implements Node, Linker.BasicLinker.Namespace
+    {
+        // Constants.
+        // A follower silent (and unreachable) for that long is removed, and
+        // the names of its users released.
+        public static final long FOLLOWER_LEASE_DURATION = 30_000;
+        private static final long RENEW_INTERVAL = FOLLOWER_LEASE_DURATION / 3;
+        // Delays between the retries of a delivery (doubled every time).
+        private static final long MIN_RETRY_DELAY = 100;
+        private static final long MAX_RETRY_DELAY = 5_000;
+
+        // This server (e.g. "host:port").
+        private final String mId;
+        private final Linker.BasicLinker mLinker;
+        // Null if this server is the leader.
+        private final Node mLeader;
+        // Leader only: the server of every user name ("room/name").
+        private final Map<String, String> mNames;
+        // Leader only: the followers to send the messages to.
+        private final Map<String, Relay> mFollowers;
+        // Leader: removes the followers whose lease expired. Follower: renews
+        // its lease.
+        private final ScheduledExecutorService mHeartbeat;
+
+        /**
+         * Create the node of the server "id" serving linker. Leader is the
+         * leader of the cluster (null if this server is the leader).
+         */
+        public BasicNode(String id, Linker.BasicLinker linker, Node leader)
+        {
+            mId = id;
+            mLinker = linker;
+            mLeader = leader;
+            mNames = new ConcurrentHashMap<>();
+            mFollowers = new ConcurrentHashMap<>();
+            mHeartbeat = Executors.newSingleThreadScheduledExecutor(
+                    r ->
+                    {
+                        Thread thread = new Thread(r, "crowdchat-node");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+            );
+
+            if (leader == null)
+            {
+                mHeartbeat.scheduleWithFixedDelay(this::reap, RENEW_INTERVAL, RENEW_INTERVAL,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public void register(String id, Node follower, boolean isRestarted) 
+            throws RemoteException
+        {
+            Relay previous = mFollowers.put(id, new Relay(id, follower));
+
+            if (previous != null)
+            {
+                previous.close();
+            }
+
+            if (isRestarted)
+            {
+                // The names of its users are not used anymore.
+                releaseAll(id);
+            }
+
+            System.out.println("Node joining: " + id);
+        }
+
+        @Override
+        public boolean renew(String id) throws RemoteException
+        {
+            Relay relay = mFollowers.get(id);
+
+            if (relay == null)
+            {
+                return false;
+            }
+
+            relay.renewLease();
+            return true;
+        }
+
+        @Override
+        public boolean claim(String room, String name, String node) throws RemoteException
+        {
+            return mNames.putIfAbsent(room + "/" + name, node) == null;
+        }
+
+        @Override
+        public void release(String room, String name, String node) throws RemoteException
+        {
+            mNames.remove(room + "/" + name, node);
+        }
+
+        @Override
+        public void deliver(String room, long firstSequence, ArrayList<Linker.Message> messages)
+            throws RemoteException
+        {
+            Room r = mLinker.getRoom(room);
+
+            if (! r.replicate(firstSequence, messages))
+            {
+                System.err.println("Error: messages of \"" + room + "\" before " 
+                        + firstSequence + " are missing, catching up.");
+                // These ones too.
+                mLinker.catchUp(r);
+            }
+        }
+
+        @Override
+        public boolean claim(String room, String name) throws RemoteException
+        {
+            return mLeader == null ? claim(room, name, mId) : mLeader.claim(room, name, mId);
+        }
+
+        @Override
+        public void release(String room, String name) throws RemoteException
+        {
+            if (mLeader == null)
+            {
+                release(room, name, mId);
+            }
+            else
+            {
+                mLeader.release(room, name, mId);
+            }
+        }
+
+        /**
+         * Ask the leader (if this server is a follower) for every message it
+         * orders from now on, and keep asking (renewing the lease, or joining
+         * again and catching up with the messages missed if removed). Stub is
+         * the remote reference of this node.
+         */
+        public void join(Node stub) throws RemoteException
+        {
+            if (mLeader != null)
+            {
+                mLeader.register(mId, stub, true);
+                mHeartbeat.scheduleWithFixedDelay(() -> renewLease(stub), RENEW_INTERVAL, 
+                        RENEW_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Renew the lease of this follower, or join the leader again if not
+         * a follower anymore (e.g. unreachable for too long).
+         */
+        private void renewLease(Node stub)
+        {
+            try
+            {
+                if (! mLeader.renew(mId))
+                {
+                    mLeader.register(mId, stub, false);
+                    System.out.println("Node joining again: " + mId);
+                    // Get the messages ordered meanwhile.
+                    mLinker.catchUp();
+                }
+            }
+            catch (Exception e)
+            {
+                System.err.println("Error: leader unreachable: " + e);
+            }
+        }
+
+        /**
+         * Send the messages just ordered in the room (the first one with this
+         * sequence number) to every follower, without waiting for them.
+         */
+        public void relay(String room, long firstSequence, List<Linker.Message> messages)
+        {
+            ArrayList<Linker.Message> copy = new ArrayList<>(messages);
+            mFollowers.values().forEach(relay -> relay.send(room, firstSequence, copy));
+        }
+
+        /**
+         * Forget every follower whose lease expired (gone), and the names of
+         * its users.
+         */
+        private void reap()
+        {
+            long now = System.currentTimeMillis();
+            mFollowers.values().forEach(
+                    relay -> 
+                    {
+                        if (relay.mLeaseEnd < now && mFollowers.remove(relay.mId, relay))
+                        {
+                            relay.close();
+                            releaseAll(relay.mId);
+                            System.err.println("Error: node " + relay.mId 
+                                    + " unreachable, removed.");
+                        }
+                    }
+            );
+        }
+
+        private void releaseAll(String node)
+        {
+            mNames.values().removeIf(node::equals);
+        }
+
+
+        /**
+         * Send the messages to a follower, in order, on its own thread (a
+         * slow follower does not delay the other ones), retrying until its
+         * lease expires.
+         */
+        private class Relay
+        {
+            private final String mId;
+            private final Node mFollower;
+            private final ExecutorService mSender;
+            private volatile boolean mIsClosed;
+            // Renewed by the follower, and by every delivery.
+            private volatile long mLeaseEnd;
+
+            private Relay(String id, Node follower)
+            {
+                mId = id;
+                mFollower = follower;
+                mSender = Executors.newSingleThreadExecutor(
+                        r ->
+                        {
+                            Thread thread = new Thread(r, "crowdchat-relay-" + id);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                );
+                mIsClosed = false;
+                renewLease();
+            }
+
+            private void renewLease()
+            {
+                mLeaseEnd = System.currentTimeMillis() + FOLLOWER_LEASE_DURATION;
+            }
+
+            private void send(String room, long firstSequence, ArrayList<Linker.Message> messages)
+            {
+                try
+                {
+                    mSender.execute(
+                            () ->
+                            {
+                                deliver(room, firstSequence, messages);
+                            }
+                    );
+                }
+                catch (RejectedExecutionException e)
+                {
+                    // Closed meanwhile.
+                }
+            }
+
+            private void deliver(String room, long firstSequence, 
+                    ArrayList<Linker.Message> messages)
+            {
+                long delay = MIN_RETRY_DELAY;
+
+                while (! mIsClosed)
+                {
+                    try
+                    {
+                        mFollower.deliver(room, firstSequence, messages);
+                        renewLease();
+                        return ;
+                    }
+                    catch (Exception e)
+                    {
+                        if (delay == MIN_RETRY_DELAY)
+                        {
+                            System.err.println("Error: cannot deliver to the node " + mId 
+                                    + ", retrying: " + e);
+                        }
+                    }
+
+                    try
+                    {
+                        // Until removed (lease expired, or joined again).
+                        Thread.sleep(delay);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return ;
+                    }
+
+                    delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+                }
+            }
+
+            private void close()
+            {
+                mIsClosed = true;
+                mSender.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package crowdchat;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Token buckets bounding the messages added to the history: one per sender
+ * (of a room), and one for the whole server. A bucket holds up to "burst"
+ * messages and refills at "rate" messages per second; a rate of 0 is no
+ * limit. The messages of a call are taken at once: a call is admitted only
+ * if the bucket holds all of them (never if more than its burst).
+ * In a cluster, only the leader takes the messages from its buckets (the
+ * followers forward them as they come), so the limits, the global one
+ * included, hold for the messages sent through every node.
+ */
+public class RateLimiter
+{
+    // Constants.
+    // Messages per second of a sender, and at once (e.g. a pasted text).
+    public static final double DEFAULT_SENDER_RATE = 20;
+    public static final int DEFAULT_SENDER_BURST = 40;
+    public static final int DEFAULT_GLOBAL_BURST = 1000;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    // Per sender (an interval of 0 if no limit), by room then by sender.
+    private final long mSenderInterval;
+    private final int mSenderBurst;
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Bucket>> mSenders;
+    // Shared by every sender (null if no limit).
+    private final Bucket mGlobal;
+
+    public RateLimiter(double senderRate, int senderBurst, double globalRate, int globalBurst)
+    {
+        mSenderInterval = senderRate > 0 ? getInterval(senderRate) : 0;
+        mSenderBurst = senderBurst;
+        mSenders = new ConcurrentHashMap<>();
+        mGlobal = globalRate > 0 
+            ? new Bucket(getInterval(globalRate), globalBurst, System.nanoTime()) : null;
+    }
+
+    /**
+     * Take count messages from the buckets of sender, and return 0 if
+     * admitted, else the time to wait (milliseconds, at least 1) before
+     * sending again.
+     */
+    public long acquire(String room, String sender, int count)
+    {
+        long now = System.nanoTime();
+        Bucket bucket = null;
+
+        if (mSenderInterval != 0)
+        {
+            bucket = getBucket(room, sender, now);
+            long wait = bucket.acquire(now, count);
+
+            if (wait > 0)
+            {
+                return toMillis(wait);
+            }
+        }
+
+        if (mGlobal != null)
+        {
+            long wait = mGlobal.acquire(now, count);
+
+            if (wait > 0)
+            {
+                if (bucket != null)
+                {
+                    // Not sent after all.
+                    bucket.release(count);
+                }
+
+                return toMillis(wait);
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Forget the buckets of the senders which are full again (called
+     * periodically, so the map only holds the active senders).
+     */
+    public void sweep()
+    {
+        long now = System.nanoTime();
+
+        mSenders.values().forEach(senders -> senders.values().removeIf(b -> b.isFull(now)));
+        mSenders.values().removeIf(ConcurrentHashMap::isEmpty);
+    }
+
+    private Bucket getBucket(String room, String sender, long now)
+    {
+        ConcurrentHashMap<String, Bucket> senders = mSenders.get(room);
+
+        if (senders == null)
+        {
+            senders = mSenders.computeIfAbsent(room, r -> new ConcurrentHashMap<>());
+        }
+
+        Bucket bucket = senders.get(sender);
+
+        if (bucket == null)
+        {
+            bucket = senders.computeIfAbsent(sender, 
+                    s -> new Bucket(mSenderInterval, mSenderBurst, now));
+        }
+
+        return bucket;
+    }
+
+    /**
+     * Return the time to refill one message at rate messages per second
+     * (nanoseconds).
+     */
+    private static long getInterval(double rate)
+    {
+        return Math.max(1, (long) (NANOS_PER_SECOND / rate));
+    }
+
+    private static long toMillis(long nanos)
+    {
+        return Math.max(1, (nanos + 999_999) / 1_000_000);
+    }
+
+
+    /**
+     * A token bucket kept as the time it will be full again (its debt, in
+     * the time to refill): a single compare-and-set per call, no lock.
+     */
+    private static class Bucket
+    {
+        // Time to refill one message, and the whole bucket (nanoseconds).
+        private final long mInterval;
+        private final long mCapacity;
+        // When the bucket is full again (System.nanoTime()).
+        private final AtomicLong mFullAt;
+
+        private Bucket(long interval, int burst, long now)
+        {
+            mInterval = interval;
+            mCapacity = interval * Math.max(1, burst);
+            mFullAt = new AtomicLong(now);
+        }
+
+        /**
+         * Take count messages if all of them are left, and return 0, else
+         * the time before they are (nanoseconds), or before the bucket is
+         * full if it cannot hold them.
+         */
+        private long acquire(long now, int count)
+        {
+            long cost = count * mInterval;
+
+            while (true)
+            {
+                long fullAt = mFullAt.get();
+                // Time passed the full one: the bucket is full (not more).
+                long start = fullAt - now > 0 ? fullAt : now;
+
+                if (cost > mCapacity)
+                {
+                    return Math.max(1, start - now);
+                }
+
+                long wait = start - now + cost - mCapacity;
+
+                if (wait > 0)
+                {
+                    return wait;
+                }
+
+                if (mFullAt.compareAndSet(fullAt, start + cost))
+                {
+                    return 0;
+                }
+            }
+        }
+
+        private void release(int count)
+        {
+            mFullAt.addAndGet(-count * mInterval);
+        }
+
+        private boolean isFull(long now)
+        {
+            return mFullAt.get() - now <= 0;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package crowdchat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A connected client seen by the server: the messages to deliver to it
+ * wait in its own bounded queue, drained by its own worker. A slow or
+ * unreachable client only delays its own messages, never the ones of the
+ * other clients.
+ * The worker delivers the queued messages in batches (one call for up to
+ * batchSize messages), waiting up to batchWindow milliseconds for a batch
+ * to fill up before sending it.
+ */
+public class Recipient
+{
+    /**
+     * What to do when a message is added to a full queue.
+     */
+    public enum OverflowPolicy
+    {
+        // Drop the oldest message of the queue.
+        DROP_OLDEST,
+        // Merge the message into the last queued one of a same sender (or
+        // drop the oldest if of another sender).
+        COALESCE,
+        // Disconnect the client.
+        DISCONNECT;
+
+        /**
+         * Return the policy named as on the command line (e.g. "drop-oldest").
+         */
+        public static OverflowPolicy parse(String name)
+        {
+            return valueOf(name.toUpperCase().replace('-', '_'));
+        }
+    }
+
+
+    private final String mName;
+    private final Client mClient;
+    private final int mCapacity;
+    private final OverflowPolicy mPolicy;
+    private final int mBatchSize;
+    private final long mBatchWindow;
+    // Runs the worker.
+    private final Executor mExecutor;
+    // Messages to deliver, in order (guarded by this).
+    private final ArrayDeque<Linker.Message> mQueue;
+    // Users who joined (true) or left (false) to notify (guarded by this).
+    private final ArrayDeque<Map.Entry<String, Boolean>> mPresence;
+    // True while a worker drains the queue (at most one, to keep the order).
+    private boolean mIsDraining;
+    private boolean mIsClosed;
+    // Time (System.nanoTime) after which the client is considered gone.
+    private volatile long mLeaseExpiry;
+    // Counters.
+    private final AtomicLong mDropped;
+    private final AtomicLong mFailed;
+    private final AtomicLong mFailedCalls;
+
+    public Recipient(String name, Client client, int capacity, OverflowPolicy policy,
+            int batchSize, long batchWindow, Executor executor)
+    {
+        mName = name;
+        mClient = client;
+        mCapacity = capacity;
+        mPolicy = policy;
+        mBatchSize = Math.max(1, batchSize);
+        mBatchWindow = batchWindow;
+        mExecutor = executor;
+        mQueue = new ArrayDeque<>();
+        mPresence = new ArrayDeque<>();
+        mIsDraining = false;
+        mIsClosed = false;
+        mDropped = new AtomicLong();
+        mFailed = new AtomicLong();
+        mFailedCalls = new AtomicLong();
+    }
+
+    public String getName()
+    {
+        return mName;
+    }
+
+    public Client getClient()
+    {
+        return mClient;
+    }
+
+    /**
+     * Consider the client alive for "duration" more milliseconds.
+     */
+    public void renewLease(long duration)
+    {
+        mLeaseExpiry = System.nanoTime() + duration * 1_000_000L;
+    }
+
+    public boolean isLeaseExpired()
+    {
+        return System.nanoTime() - mLeaseExpiry > 0;
+    }
+
+    /**
+     * Queue the messages to deliver, in order. Return false if the queue is 
+     * full and the policy is to disconnect the client (the recipient is then 
+     * closed).
+     */
+    public boolean offer(List<Linker.Message> messages)
+    {
+        synchronized (this)
+        {
+            if (mIsClosed)
+            {
+                return true;
+            }
+
+            for (Linker.Message message : messages)
+            {
+                if (mQueue.size() >= mCapacity)
+                {
+                    if (mPolicy == OverflowPolicy.DISCONNECT)
+                    {
+                        close();
+                        return false;
+                    }
+
+                    if (mPolicy == OverflowPolicy.COALESCE && coalesce(message))
+                    {
+                        continue;
+                    }
+
+                    // Nothing to merge: drop the oldest message.
+                    mQueue.poll();
+                    mDropped.incrementAndGet();
+                }
+
+                mQueue.add(message);
+            }
+
+            if (mIsDraining)
+            {
+                if (mQueue.size() >= mBatchSize)
+                {
+                    // Wake up the worker waiting for a full batch.
+                    notifyAll();
+                }
+
+                return true;
+            }
+
+            mIsDraining = true;
+        }
+
+        mExecutor.execute(this::drain);
+        return true;
+    }
+
+    /**
+     * Queue the notification that the user joined or left. The oldest one
+     * is dropped if the queue is full (the client asks the server for the 
+     * missed changes with the next ones anyway).
+     */
+    public void offerPresence(String name, boolean isJoined)
+    {
+        synchronized (this)
+        {
+            if (mIsClosed)
+            {
+                return ;
+            }
+
+            if (mPresence.size() >= mCapacity)
+            {
+                mPresence.poll();
+            }
+
+            mPresence.add(Map.entry(name, isJoined));
+
+            if (mIsDraining)
+            {
+                notifyAll();
+                return ;
+            }
+
+            mIsDraining = true;
+        }
+
+        mExecutor.execute(this::drain);
+    }
+
+    /**
+     * Stop delivering messages (the queued ones are dropped).
+     */
+    public synchronized void close()
+    {
+        mIsClosed = true;
+        mDropped.addAndGet(mQueue.size());
+        mQueue.clear();
+        mPresence.clear();
+        notifyAll();
+    }
+
+    public synchronized int getQueueDepth()
+    {
+        return mQueue.size();
+    }
+
+    /**
+     * Return the number of messages dropped (full queue).
+     */
+    public long getDroppedCount()
+    {
+        return mDropped.get();
+    }
+
+    /**
+     * Return the number of messages the client failed to receive.
+     */
+    public long getFailedCount()
+    {
+        return mFailed.get();
+    }
+
+    /**
+     * Return the number of calls to the client (messages or notifications)
+     * which failed.
+     */
+    public long getFailedCallCount()
+    {
+        return mFailedCalls.get();
+    }
+
+    /**
+     * Worker: deliver the queued notifications and messages until the 
+     * queues are empty.
+     */
+    private void drain()
+    {
+        try
+        {
+            // Let the first batch fill up (the next ones fill up during the calls).
+            awaitBatch();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        while (true)
+        {
+            ArrayList<Linker.Message> batch = new ArrayList<>();
+            ArrayList<Map.Entry<String, Boolean>> presence = new ArrayList<>();
+
+            synchronized (this)
+            {
+                presence.addAll(mPresence);
+                mPresence.clear();
+
+                while (! mIsClosed && batch.size() < mBatchSize && ! mQueue.isEmpty())
+                {
+                    batch.add(mQueue.poll());
+                }
+
+                if (batch.isEmpty() && presence.isEmpty())
+                {
+                    mIsDraining = false;
+                    return ;
+                }
+            }
+
+            for (Map.Entry<String, Boolean> change : presence)
+            {
+                try
+                {
+                    if (change.getValue())
+                    {
+                        mClient.notifyConnected(change.getKey());
+                    }
+                    else
+                    {
+                        mClient.notifyDisconnected(change.getKey());
+                    }
+                }
+                catch (Exception e)
+                {
+                    mFailedCalls.incrementAndGet();
+                    System.err.println("Error: cannot notify \"" + mName + "\" that \"" 
+                            + change.getKey() + "\" " + (change.getValue() ? "joined." : "left."));
+                }
+            }
+
+            if (batch.isEmpty())
+            {
+                continue;
+            }
+
+            try
+            {
+                if (batch.size() == 1)
+                {
+                    mClient.writeMessage(batch.get(0));
+                }
+                else
+                {
+                    mClient.writeMessages(batch);
+                }
+            }
+            catch (Exception e)
+            {
+                mFailed.addAndGet(batch.size());
+                mFailedCalls.incrementAndGet();
+                System.err.println("Error: cannot distribute a message to \""
+                        + mName + "\".");
+            }
+        }
+    }
+
+    /**
+     * Wait until a full batch is queued, or for batchWindow milliseconds.
+     */
+    private synchronized void awaitBatch() throws InterruptedException
+    {
+        long deadline = System.nanoTime() + mBatchWindow * 1_000_000L;
+        long remaining = deadline - System.nanoTime();
+
+        while (! mIsClosed && mQueue.size() < mBatchSize && remaining > 0)
+        {
+            wait(Math.max(1, remaining / 1_000_000L));
+            remaining = deadline - System.nanoTime();
+        }
+    }
+
+    /**
+     * Merge the message into the last queued one if of the same sender (in
+     * place, the queue is not copied). Return false if not.
+     */
+    private boolean coalesce(Linker.Message message)
+    {
+        Linker.Message last = mQueue.peekLast();
+
+        if (last == null || ! last.getSender().equals(message.getSender()))
+        {
+            return false;
+        }
+
+        // Stands for both, so the client does not count them missed.
+        Linker.Message m = new Linker.Message(message.getSequence(), last.getTimestamp(), 
+                last.getSender(), last.getContent() + "\n" + message.getContent());
+        m.setFirstSequence(last.getFirstSequence());
+        mQueue.pollLast();
+        mQueue.add(m);
+        return true;
+    }
+}
@@ -0,0 +1,773 @@
+package crowdchat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import java.rmi.RemoteException;
+
+
+/**
+ * A chat room: its own history, its own connected users (with their own
+ * presence versions) and its own dispatcher thread. Rooms share nothing,
+ * so the traffic of a room never waits for the other rooms.
+ */
+public class Room
+{
+    /**
+     * Read the messages older than the ones kept in memory.
+     */
+    public interface Archive
+    {
+        /**
+         * Return the messages with a sequence number in [from, to[.
+         */
+        ArrayList<Linker.Message> read(long from, long to) throws IOException;
+
+        /**
+         * Return the messages with these sequence numbers (the ones kept), 
+         * e.g. scattered search hits.
+         */
+        default ArrayList<Linker.Message> read(List<Long> sequences) throws IOException
+        {
+            ArrayList<Linker.Message> messages = new ArrayList<>();
+
+            for (long sequence : sequences)
+            {
+                messages.addAll(read(sequence, sequence + 1));
+            }
+
+            return messages;
+        }
+    }
+
+    // Constants.
+    private static final int PRESENCE_HISTORY = 10_000;
+    // Messages fetched at once when catching up.
+    private static final int CATCH_UP_SIZE = 1_000;
+
+    private final String mId;
+    // Connected users and their queues of messages to deliver.
+    private final Map<String, Recipient> mClients;
+    private final int mQueueCapacity;
+    private final Recipient.OverflowPolicy mOverflowPolicy;
+    // At most mBatchSize messages delivered per call, gathered for
+    // at most mBatchWindow milliseconds.
+    private final int mBatchSize;
+    private final long mBatchWindow;
+    // Number of clients disconnected for being too slow.
+    private final AtomicLong mSlowDisconnections;
+    // Failed calls to the clients gone.
+    private final AtomicLong mGoneFailedCalls;
+    // Incremented on every join or leave (changed under mPresenceChanges).
+    private final AtomicLong mPresenceVersion;
+    // Users who joined or left, with the version of their last change
+    // (oldest change first, and at most PRESENCE_HISTORY of them).
+    private final LinkedHashMap<String, Long> mPresenceChanges;
+    // Version of the last change forgotten from mPresenceChanges.
+    private long mPresenceHorizon;
+    private volatile MessageLog mClientMessages;
+    // Messages before the ones of mClientMessages.
+    private volatile Archive mArchive;
+    // Words of the history (null if not searchable).
+    private volatile SearchIndex mSearchIndex;
+    // Sequence number of the next message to spread.
+    private long mDispatched;
+    // Called with every message of a sender, before its call returns (e.g.
+    // to save it).
+    private volatile Consumer<Linker.Message> mAppendListener;
+    // Called with every new message, in the log order (e.g. to index it).
+    private volatile Consumer<Linker.Message> mMessageListener;
+    // Called with every batch of messages spread, and the sequence number
+    // of its first message (e.g. to relay it to other servers).
+    private volatile BiConsumer<Long, List<Linker.Message>> mBatchListener;
+    // Called with the name of every user leaving the room.
+    private volatile Consumer<String> mDepartureListener;
+    // Called with the number of messages of every broadcast, and its duration.
+    private volatile BiConsumer<Integer, Long> mFanOutListener;
+    // Keep the messages order (one message spread at a time)...
+    private final ExecutorService mDispatcher;
+    // ...but deliver to every client on its own (by its Recipient).
+    private final ExecutorService mCallbacks;
+
+    /**
+     * At most queueCapacity messages wait to be delivered to a client, then
+     * policy tells what to do with the new ones. The messages are delivered
+     * batchSize at a time at most, a batch waiting at most batchWindow
+     * milliseconds to fill up. The clients are called by callbacks.
+     */
+    public Room(String id, int queueCapacity, Recipient.OverflowPolicy policy,
+            int batchSize, long batchWindow, ExecutorService callbacks)
+    {
+        mId = id;
+        mClients = new ConcurrentHashMap<>();
+        mQueueCapacity = queueCapacity;
+        mOverflowPolicy = policy;
+        mBatchSize = batchSize;
+        mBatchWindow = batchWindow;
+        mSlowDisconnections = new AtomicLong();
+        mGoneFailedCalls = new AtomicLong();
+        mPresenceVersion = new AtomicLong();
+        mPresenceChanges = new LinkedHashMap<>();
+        mPresenceHorizon = 0;
+        mClientMessages = new MessageLog();
+        mArchive = (from, to) -> new ArrayList<>();
+        mDispatched = 0;
+        mAppendListener = m -> {};
+        mMessageListener = m -> {};
+        mBatchListener = (sequence, messages) -> {};
+        mDepartureListener = name -> {};
+        mFanOutListener = (count, nanos) -> {};
+        mDispatcher = Executors.newSingleThreadExecutor(
+                r ->
+                {
+                    Thread thread = new Thread(r, "crowdchat-dispatcher-" + id);
+                    // Do not keep the server alive once RMI is done.
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+        mCallbacks = callbacks;
+    }
+
+    public String getId()
+    {
+        return mId;
+    }
+
+    /**
+     * Add the message to the history and spread it (without waiting).
+     */
+    public Linker.Message addMessage(String sender, String message)
+    {
+        Linker.Message m = new Linker.Message(System.currentTimeMillis(), sender, message);
+        mClientMessages.append(m);
+        mAppendListener.accept(m);
+        mDispatcher.execute(this::dispatch);
+
+        return m;
+    }
+
+    public void addMessages(String sender, List<String> messages)
+    {
+        long now = System.currentTimeMillis();
+        MessageLog log = mClientMessages;
+        Consumer<Linker.Message> listener = mAppendListener;
+
+        for (String message : messages)
+        {
+            Linker.Message m = new Linker.Message(now, sender, message);
+            log.append(m);
+            listener.accept(m);
+        }
+
+        mDispatcher.execute(this::dispatch);
+    }
+
+    /**
+     * Add messages already ordered by another server (the first one with
+     * this sequence number), and spread them. The ones already in the 
+     * history are ignored. Return false (adding none) if messages before 
+     * them are missing: they have to be fetched first ("catchUp"). Called
+     * in order.
+     */
+    public synchronized boolean replicate(long firstSequence, List<Linker.Message> messages)
+    {
+        MessageLog log = mClientMessages;
+
+        if (firstSequence > log.getEnd())
+        {
+            // Numbered from the end of the log, they would not have the
+            // sequence numbers of the other server.
+            return false;
+        }
+
+        long sequence = firstSequence;
+
+        for (Linker.Message m : messages)
+        {
+            if (sequence++ >= log.getEnd())
+            {
+                log.append(m);
+            }
+        }
+
+        mDispatcher.execute(this::dispatch);
+        return true;
+    }
+
+    /**
+     * Add the messages ordered by upstream since the last one of the
+     * history (e.g. missed while unreachable), and spread them. If upstream
+     * does not have some of them anymore (past its retention), the history
+     * goes on from the oldest one it has.
+     */
+    public synchronized void catchUp(Linker upstream) throws RemoteException
+    {
+        while (true)
+        {
+            MessageLog log = mClientMessages;
+            long end = log.getEnd();
+            Linker.Page page = upstream.getMessagesAfter(mId, end, CATCH_UP_SIZE);
+
+            if (page.getMessages().isEmpty())
+            {
+                return ;
+            }
+
+            if (page.getFirstSequence() > end)
+            {
+                System.err.println("Error: messages " + end + " to " 
+                        + (page.getFirstSequence() - 1) + " of \"" + mId + "\" are lost.");
+                log = new MessageLog(page.getFirstSequence());
+                setHistory(log, mArchive);
+            }
+
+            log.appendAll(page.getMessages());
+            mDispatcher.execute(this::dispatch);
+        }
+    }
+
+    /**
+     * Add the user to the room, with a lease of leaseDuration milliseconds.
+     * Return false if the name is already used in the room.
+     */
+    public boolean connect(String name, Client client, long leaseDuration)
+    {
+        Recipient recipient
+            = new Recipient(name, client, mQueueCapacity, mOverflowPolicy,
+                    mBatchSize, mBatchWindow, mCallbacks);
+        recipient.renewLease(leaseDuration);
+
+        synchronized (mPresenceChanges)
+        {
+            if (mClients.putIfAbsent(name, recipient) != null)
+            {
+                return false;
+            }
+
+            recordPresenceChange(name);
+        }
+
+        spreadPresence(name, true);
+        return true;
+    }
+
+    public void disconnect(String name)
+    {
+        Recipient recipient = mClients.get(name);
+
+        if (recipient != null)
+        {
+            removeClient(name, recipient);
+        }
+    }
+
+    /**
+     * Disconnect the user only if connected with this client, and return
+     * true if done.
+     */
+    public boolean disconnect(String name, Client client)
+    {
+        Recipient recipient = mClients.get(name);
+
+        return recipient != null && recipient.getClient() == client 
+            && removeClient(name, recipient);
+    }
+
+    /**
+     * Extend the lease of the user. Return false if not connected.
+     */
+    public boolean renewLease(String name, long duration)
+    {
+        Recipient recipient = mClients.get(name);
+
+        if (recipient == null)
+        {
+            return false;
+        }
+
+        recipient.renewLease(duration);
+        return true;
+    }
+
+    /**
+     * Disconnect every client whose lease expired, and return their names.
+     */
+    public ArrayList<String> reap()
+    {
+        ArrayList<String> expired = new ArrayList<>();
+
+        mClients.forEach(
+                (name, recipient) ->
+                {
+                    if (recipient.isLeaseExpired() && removeClient(name, recipient))
+                    {
+                        expired.add(name);
+                    }
+                }
+        );
+
+        return expired;
+    }
+
+    public ArrayList<String> getClientNames()
+    {
+        return new ArrayList<>(mClients.keySet());
+    }
+
+    /**
+     * Return the users who joined or left since the presence version.
+     */
+    public Linker.Presence getPresence(long version)
+    {
+        synchronized (mPresenceChanges)
+        {
+            long current = mPresenceVersion.get();
+
+            if (version <= 0 || version < mPresenceHorizon || version > current)
+            {
+                // Unknown or forgotten version: send the whole list.
+                return new Linker.Presence(current, true,
+                        new ArrayList<>(mClients.keySet()), new ArrayList<>());
+            }
+
+            ArrayList<String> joined = new ArrayList<>();
+            ArrayList<String> left = new ArrayList<>();
+
+            mPresenceChanges.forEach(
+                    (name, changed) ->
+                    {
+                        if (changed > version)
+                        {
+                            (mClients.containsKey(name) ? joined : left).add(name);
+                        }
+                    }
+            );
+
+            return new Linker.Presence(current, false, joined, left);
+        }
+    }
+
+    /**
+     * Remove the client (if still connected as recipient) and tell the
+     * other ones. Return false if it was already removed.
+     */
+    private boolean removeClient(String name, Recipient recipient)
+    {
+        synchronized (mPresenceChanges)
+        {
+            if (! mClients.remove(name, recipient))
+            {
+                return false;
+            }
+
+            recordPresenceChange(name);
+        }
+
+        recipient.close();
+        mGoneFailedCalls.addAndGet(recipient.getFailedCallCount());
+        spreadPresence(name, false);
+        mDepartureListener.accept(name);
+        return true;
+    }
+
+    /**
+     * Give a new presence version to the join or leave of this user.
+     * Called under mPresenceChanges.
+     */
+    private void recordPresenceChange(String name)
+    {
+        mPresenceChanges.remove(name);
+        mPresenceChanges.put(name, mPresenceVersion.incrementAndGet());
+
+        if (mPresenceChanges.size() > PRESENCE_HISTORY)
+        {
+            Iterator<Map.Entry<String, Long>> eldest = mPresenceChanges.entrySet().iterator();
+            mPresenceHorizon = eldest.next().getValue();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Tell every other client that this user joined or left (they then
+     * fetch the changes with "getPresence").
+     */
+    private void spreadPresence(String name, boolean isJoined)
+    {
+        mClients.forEach(
+                (other, recipient) ->
+                {
+                    if (! other.equals(name))
+                    {
+                        recipient.offerPresence(name, isJoined);
+                    }
+                }
+        );
+    }
+
+    public ArrayList<Linker.Message> getClientMessages() throws RemoteException
+    {
+        MessageLog log = mClientMessages;
+        return readMessages(log, 0, log.getEnd());
+    }
+
+    /**
+     * Return (at most) the "count" messages sent right before the message
+     * with this sequence number.
+     */
+    public Linker.Page getMessagesBefore(long sequence, int count) throws RemoteException
+    {
+        MessageLog log = mClientMessages;
+        long to = Math.min(sequence, log.getEnd());
+        long from = Math.max(0, to - Math.max(0, count));
+        ArrayList<Linker.Message> messages = readMessages(log, from, to);
+
+        if (messages.size() < to - from)
+        {
+            // The older messages are past the retention of the archive.
+            return new Linker.Page(to - messages.size(), messages, false);
+        }
+
+        return new Linker.Page(from, messages);
+    }
+
+    /**
+     * Return (at most) the "count" messages sent from the message with this
+     * sequence number.
+     */
+    public Linker.Page getMessagesAfter(long sequence, int count) throws RemoteException
+    {
+        MessageLog log = mClientMessages;
+        long from = Math.min(Math.max(0, sequence), log.getEnd());
+        long to = Math.min(log.getEnd(), from + Math.max(0, count));
+        ArrayList<Linker.Message> messages = readMessages(log, from, to);
+
+        if (messages.size() < to - from)
+        {
+            // The first messages are past the retention of the archive.
+            return new Linker.Page(to - messages.size(), messages, false);
+        }
+
+        return new Linker.Page(from, messages);
+    }
+
+    /**
+     * Set the history: the most recent messages are in log, and the
+     * older ones (before log.getFirst()) are read from archive on demand.
+     */
+    public void setHistory(MessageLog log, Archive archive) throws RemoteException
+    {
+        try
+        {
+            // Swap the logs between two dispatches (the history is not spread).
+            mDispatcher.submit(
+                    () ->
+                    {
+                        mClientMessages = log;
+                        mArchive = archive;
+                        mDispatched = log.getEnd();
+                    }
+            ).get();
+        }
+        catch (Exception e)
+        {
+            throw new RemoteException("Cannot replace the message history.", e);
+        }
+    }
+
+    /**
+     * Forget the messages of the history log before this sequence number,
+     * now readable from the archive (e.g. once the journal rolled them into
+     * a full segment), so the log only holds the recent messages. The ones
+     * not yet spread are kept.
+     */
+    public void trimHistory(long sequence)
+    {
+        mDispatcher.execute(() -> mClientMessages.trim(Math.min(sequence, mDispatched)));
+    }
+
+    /**
+     * Set the index of the history searched by "search" (kept up to date by
+     * the caller).
+     */
+    public void setSearchIndex(SearchIndex index)
+    {
+        mSearchIndex = index;
+    }
+
+    /**
+     * Return the messages holding every word of the query (and sent by 
+     * sender if not null) sent in [since, until], the most recent first: at
+     * most limit of them, before the cursor (a sequence number, or -1).
+     */
+    public Linker.Hits search(String query, String sender, long since, long until, 
+            int limit, long cursor) throws RemoteException
+    {
+        SearchIndex index = mSearchIndex;
+
+        if (index == null)
+        {
+            throw new RemoteException("The room \"" + mId + "\" cannot be searched.");
+        }
+
+        MessageLog log = mClientMessages;
+        ArrayList<Long> sequences = index.search(query, sender, since, until, limit, 
+                cursor < 0 ? Long.MAX_VALUE : cursor);
+        long first = log.getFirst();
+        ArrayList<Long> archived = new ArrayList<>();
+        Map<Long, Linker.Message> found = new HashMap<>();
+
+        for (long sequence : sequences)
+        {
+            if (sequence < first)
+            {
+                archived.add(sequence);
+            }
+            else
+            {
+                readMessages(log, sequence, sequence + 1)
+                    .forEach(m -> found.put(m.getSequence(), m));
+            }
+        }
+
+        try
+        {
+            // At once: the hits of a same block are read together.
+            mArchive.read(archived).forEach(m -> found.put(m.getSequence(), m));
+        }
+        catch (IOException e)
+        {
+            throw new RemoteException("Cannot read the message history.", e);
+        }
+
+        ArrayList<Linker.Message> hits = new ArrayList<>();
+
+        for (long sequence : sequences)
+        {
+            // Nothing if past the retention.
+            Linker.Message m = found.get(sequence);
+
+            if (m != null && m.getTimestamp() >= since && m.getTimestamp() <= until)
+            {
+                hits.add(m);
+            }
+        }
+
+        return new Linker.Hits(hits, sequences.size() < limit 
+                ? -1 : sequences.get(sequences.size() - 1));
+    }
+
+    /**
+     * Set the function called with every message added by a sender, before
+     * "addMessage(s)" returns (with its sequence number, but concurrent
+     * senders can call it out of order), e.g. to save it before it is
+     * acknowledged.
+     */
+    public void setAppendListener(Consumer<Linker.Message> listener)
+    {
+        mAppendListener = listener;
+    }
+
+    /**
+     * Set the function called with every new message, in the order of
+     * the history, before it is spread.
+     */
+    public void setMessageListener(Consumer<Linker.Message> listener)
+    {
+        mMessageListener = listener;
+    }
+
+    /**
+     * Set the function called with every batch of messages spread (in the 
+     * order of the history), with the sequence number of its first message.
+     */
+    public void setBatchListener(BiConsumer<Long, List<Linker.Message>> listener)
+    {
+        mBatchListener = listener;
+    }
+
+    /**
+     * Set the function called with the name of every user leaving the room
+     * (disconnected, expired or too slow).
+     */
+    public void setDepartureListener(Consumer<String> listener)
+    {
+        mDepartureListener = listener;
+    }
+
+    /**
+     * Set the function called after every broadcast with its number of 
+     * messages and how long (nanoseconds) queuing them for every client took.
+     */
+    public void setFanOutListener(BiConsumer<Integer, Long> listener)
+    {
+        mFanOutListener = listener;
+    }
+
+    /**
+     * Return the messages with a sequence number in [from, to[, reading
+     * the archive only for the ones not in log (none past its retention).
+     */
+    private ArrayList<Linker.Message> readMessages(MessageLog log, long from, long to)
+        throws RemoteException
+    {
+        while (true)
+        {
+            long first = log.getFirst();
+            ArrayList<Linker.Message> messages;
+
+            try
+            {
+                messages = from >= first ? new ArrayList<>()
+                    : mArchive.read(from, Math.min(to, first));
+            }
+            catch (IOException e)
+            {
+                throw new RemoteException("Cannot read the message history.", e);
+            }
+
+            messages.addAll(log.snapshot(Math.max(from, first), to));
+
+            // Else trimmed meanwhile: now in the archive.
+            if (log.getFirst() == first)
+            {
+                return messages;
+            }
+        }
+    }
+
+    /**
+     * Spread every message added since the last call, in the log order.
+     * Only run by the dispatcher thread.
+     */
+    private void dispatch()
+    {
+        MessageLog log = mClientMessages;
+        long end = log.getEnd();
+        long first = mDispatched;
+        ArrayList<Linker.Message> messages = new ArrayList<>();
+
+        while (mDispatched < end)
+        {
+            Linker.Message m = log.get(mDispatched++);
+            mMessageListener.accept(m);
+            messages.add(m);
+        }
+
+        if (! messages.isEmpty())
+        {
+            // Queued together, so that they can be delivered together.
+            long start = System.nanoTime();
+            broadcast(messages);
+            mFanOutListener.accept(messages.size(), System.nanoTime() - start);
+            mBatchListener.accept(first, messages);
+        }
+    }
+
+    /**
+     * Queue the messages for every connected client (without waiting for
+     * any of them), and disconnect the ones too slow to keep up.
+     */
+    private void broadcast(List<Linker.Message> messages)
+    {
+        mClients.forEach(
+                (name, recipient) ->
+                {
+                    if (! recipient.offer(messages) && removeClient(name, recipient))
+                    {
+                        mSlowDisconnections.incrementAndGet();
+                        System.err.println("Error: \"" + name + "\" disconnected from \""
+                                + mId + "\" (too slow to receive the messages).");
+                        notifyDisconnected(recipient);
+                    }
+                }
+        );
+    }
+
+    /**
+     * Tell the client it was disconnected, without waiting for it.
+     */
+    private void notifyDisconnected(Recipient recipient)
+    {
+        mCallbacks.execute(
+                () ->
+                {
+                    try
+                    {
+                        recipient.getClient().notifyDisconnected(recipient.getName());
+                    }
+                    catch (Exception e)
+                    {
+                        // Probably the reason why it was too slow.
+                    }
+                }
+        );
+    }
+
+    /**
+     * Return the number of messages waiting to be delivered, per client.
+     */
+    public Map<String, Integer> getQueueDepths()
+    {
+        Map<String, Integer> depths = new HashMap<>();
+        mClients.forEach((name, recipient) -> depths.put(name, recipient.getQueueDepth()));
+        return depths;
+    }
+
+    /**
+     * Return the number of messages dropped (full queue), per client.
+     */
+    public Map<String, Long> getDroppedMessages()
+    {
+        Map<String, Long> dropped = new HashMap<>();
+        mClients.forEach((name, recipient) -> dropped.put(name, recipient.getDroppedCount()));
+        return dropped;
+    }
+
+    /**
+     * Return the number of clients disconnected for being too slow.
+     */
+    public long getSlowDisconnections()
+    {
+        return mSlowDisconnections.get();
+    }
+
+    /**
+     * Return the number of failed calls to the clients (connected or gone).
+     */
+    public long getFailedCalls()
+    {
+        long failed = mGoneFailedCalls.get();
+
+        for (Recipient recipient : mClients.values())
+        {
+            failed += recipient.getFailedCallCount();
+        }
+
+        return failed;
+    }
+
+    /**
+     * Return the number of messages of the history (kept or archived).
+     */
+    public long getHistorySize()
+    {
+        return mClientMessages.getEnd();
+    }
+
+    public int getClientCount()
+    {
+        return mClients.size();
+    }
+}
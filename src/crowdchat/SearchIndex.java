@@ -0,0 +1,594 @@
+package crowdchat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Inverted index of the messages of a room, for the full-text search: for
+ * every word (and every sender), the sequence numbers of its messages in
+ * order. The messages are added in the order of the history by a single
+ * thread (as they are sent), while any thread searches without locking.
+ * The messages deleted by the retention of the journal are pruned by
+ * another thread: the lists are replaced, never shrunk in place.
+ * The index is saved in a file next to the journal; on start, the messages
+ * added since the last save are indexed again.
+ * A room holds less than 2^31 messages.
+ */
+public class SearchIndex
+{
+    // Constants.
+    // Version of the file format.
+    private static final int FORMAT = 1;
+    // Longest word indexed (the longer ones are cut).
+    private static final int MAX_WORD_LENGTH = 64;
+    // Terms of the senders (not words: no word has this character).
+    private static final String SENDER_PREFIX = "\u0000";
+    // One timestamp kept every TIME_INTERVAL messages (to bound the time ranges).
+    private static final int TIME_INTERVAL = 64;
+
+    private final Path mFile;
+    // Changed through "compute" only (the adding and pruning threads).
+    private final ConcurrentHashMap<String, Postings> mPostings;
+    // Sequence numbers and timestamps of one message every TIME_INTERVAL
+    // (changed under this).
+    private volatile Samples mSamples;
+    // Sequence number after the last message indexed.
+    private volatile long mEnd;
+
+    public SearchIndex(Path file)
+    {
+        mFile = file;
+        mPostings = new ConcurrentHashMap<>();
+        mSamples = Samples.EMPTY;
+        mEnd = 0;
+    }
+
+    /**
+     * Read the index saved (empty if none or unreadable). Must be called
+     * before any message is added.
+     */
+    public void load()
+    {
+        if (! Files.exists(mFile))
+        {
+            return ;
+        }
+
+        try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(mFile))))
+        {
+            if (in.readInt() != FORMAT)
+            {
+                throw new IOException("Unknown format.");
+            }
+
+            long end = in.readLong();
+            int samples = in.readInt();
+
+            for (int i = 0; i < samples; i++)
+            {
+                addTime((int) in.readLong(), in.readLong());
+            }
+
+            int terms = in.readInt();
+
+            for (int i = 0; i < terms; i++)
+            {
+                String term = Linker.Message.readString(in);
+                int count = (int) Linker.Message.readVarLong(in);
+                Postings postings = new Postings();
+                int sequence = 0;
+
+                for (int j = 0; j < count; j++)
+                {
+                    sequence += (int) Linker.Message.readVarLong(in);
+                    postings.add(sequence);
+                }
+
+                mPostings.put(term, postings);
+            }
+
+            mEnd = end;
+        }
+        catch (IOException e)
+        {
+            System.err.println("Error: cannot read the search index " + mFile
+                    + ", it is built again.");
+            clear();
+        }
+    }
+
+    /**
+     * Write the index in its file (while messages are added).
+     */
+    public void save()
+    {
+        Path temporary = mFile.resolveSibling(mFile.getFileName() + ".new");
+
+        try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temporary))))
+        {
+            // Only the messages indexed so far: the next ones are indexed
+            // again on start.
+            long end = mEnd;
+            Samples samples = mSamples;
+            int sampleCount = samples.count(end);
+
+            out.writeInt(FORMAT);
+            out.writeLong(end);
+            out.writeInt(sampleCount);
+
+            for (int i = 0; i < sampleCount; i++)
+            {
+                out.writeLong(samples.mSequences[i]);
+                out.writeLong(samples.mTimes[i]);
+            }
+
+            out.writeInt(mPostings.size());
+
+            for (Map.Entry<String, Postings> entry : mPostings.entrySet())
+            {
+                Postings postings = entry.getValue();
+                int count = postings.count(end);
+                int sequence = 0;
+
+                Linker.Message.writeString(out, entry.getKey());
+                Linker.Message.writeVarLong(out, count);
+
+                for (int i = 0; i < count; i++)
+                {
+                    Linker.Message.writeVarLong(out, postings.get(i) - sequence);
+                    sequence = postings.get(i);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("Error: cannot save the search index " + mFile + ".");
+            return ;
+        }
+
+        try
+        {
+            Files.move(temporary, mFile, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            System.err.println("Error: cannot save the search index " + mFile + ".");
+        }
+    }
+
+    /**
+     * Forget every message (to index them again).
+     */
+    public void clear()
+    {
+        mPostings.clear();
+        mSamples = Samples.EMPTY;
+        mEnd = 0;
+    }
+
+    /**
+     * Forget the messages before the sequence number base (deleted from
+     * the history), while messages are added and searched.
+     */
+    public void prune(long base)
+    {
+        int first = (int) Math.min(base, Integer.MAX_VALUE);
+
+        for (String term : mPostings.keySet())
+        {
+            // Dropped once empty.
+            mPostings.computeIfPresent(term, (t, postings) -> postings.from(first));
+        }
+
+        synchronized (this)
+        {
+            mSamples = mSamples.from(first);
+        }
+    }
+
+    /**
+     * Return the sequence number after the last message indexed.
+     */
+    public long getEnd()
+    {
+        return mEnd;
+    }
+
+    /**
+     * Index the message (the ones already indexed are ignored). Called in
+     * the order of the history, by a single thread.
+     */
+    public void add(Linker.Message message)
+    {
+        long sequence = message.getSequence();
+
+        if (sequence < mEnd)
+        {
+            return ;
+        }
+
+        for (String term : getWords(message.getContent()))
+        {
+            addPosting(term, (int) sequence);
+        }
+
+        addPosting(SENDER_PREFIX + message.getSender(), (int) sequence);
+
+        Samples samples = mSamples;
+
+        if (samples.mSize == 0 
+                || sequence - samples.mSequences[samples.mSize - 1] >= TIME_INTERVAL)
+        {
+            addTime((int) sequence, message.getTimestamp());
+        }
+
+        mEnd = sequence + 1;
+    }
+
+    /**
+     * Return the sequence numbers of the messages holding every word of the
+     * query (and sent by sender if not null), the most recent first: at most
+     * limit of them, before the sequence number "before". Only the messages
+     * sent around [since, until] (epoch milliseconds) are returned, their
+     * time is to be checked.
+     */
+    public ArrayList<Long> search(String query, String sender, long since, long until,
+            int limit, long before)
+    {
+        ArrayList<Long> hits = new ArrayList<>();
+        ArrayList<Postings> postings = new ArrayList<>();
+        LinkedHashSet<String> terms = getWords(query);
+
+        if (sender != null)
+        {
+            terms.add(SENDER_PREFIX + sender);
+        }
+
+        for (String term : terms)
+        {
+            Postings p = mPostings.get(term);
+
+            if (p == null)
+            {
+                return hits;
+            }
+
+            postings.add(p);
+        }
+
+        if (postings.isEmpty())
+        {
+            return hits;
+        }
+
+        // Walk the shortest list, and look for its messages in the others.
+        postings.sort(Comparator.comparingInt(Postings::size));
+        int[][] lists = new int[postings.size()][];
+        // Every list is only searched below the last message found in it.
+        int[] highs = new int[postings.size()];
+
+        for (int i = 0; i < lists.length; i++)
+        {
+            // The size first: the array holds at least this many values.
+            highs[i] = postings.get(i).size();
+            lists[i] = postings.get(i).mValues;
+        }
+
+        int[] shortest = lists[0];
+        long lower = getFirstSequenceAround(since);
+        long upper = Math.min(before, getEndSequenceAround(until));
+
+        for (int i = findBefore(shortest, highs[0], upper);
+                i >= 0 && shortest[i] >= lower && hits.size() < limit; i--)
+        {
+            int sequence = shortest[i];
+            boolean isEverywhere = true;
+
+            for (int j = 1; j < lists.length && isEverywhere; j++)
+            {
+                int found = findBefore(lists[j], highs[j], sequence + 1L);
+                highs[j] = found + 1;
+                isEverywhere = found >= 0 && lists[j][found] == sequence;
+            }
+
+            if (isEverywhere)
+            {
+                hits.add((long) sequence);
+            }
+        }
+
+        return hits;
+    }
+
+    /**
+     * Return the words of the text: its runs of letters and digits, in
+     * lower case.
+     */
+    public static LinkedHashSet<String> getWords(String text)
+    {
+        LinkedHashSet<String> words = new LinkedHashSet<>();
+        StringBuilder word = new StringBuilder();
+
+        for (int i = 0; i <= text.length(); )
+        {
+            int c = i < text.length() ? text.codePointAt(i) : ' ';
+
+            if (Character.isLetterOrDigit(c))
+            {
+                if (word.length() < MAX_WORD_LENGTH)
+                {
+                    word.appendCodePoint(c);
+                }
+            }
+            else if (word.length() > 0)
+            {
+                words.add(word.toString().toLowerCase(Locale.ROOT));
+                word.setLength(0);
+            }
+
+            i += Character.charCount(c);
+        }
+
+        return words;
+    }
+
+    /**
+     * Return the index of the last value below "below" in list[0, length[,
+     * -1 if none.
+     */
+    private static int findBefore(int[] list, int length, long below)
+    {
+        int low = 0;
+        int high = length - 1;
+        int found = -1;
+
+        while (low <= high)
+        {
+            int middle = (low + high) >>> 1;
+
+            if (list[middle] < below)
+            {
+                found = middle;
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle - 1;
+            }
+        }
+
+        return found;
+    }
+
+    private void addPosting(String term, int sequence)
+    {
+        // Not in a list being pruned meanwhile.
+        mPostings.compute(term, 
+                (t, postings) -> 
+                {
+                    postings = postings != null ? postings : new Postings();
+                    postings.add(sequence);
+                    return postings;
+                }
+        );
+    }
+
+    private synchronized void addTime(int sequence, long timestamp)
+    {
+        mSamples = mSamples.add(sequence, timestamp);
+    }
+
+    /**
+     * Return a sequence number before every message sent at or after the
+     * time (one interval earlier, as the times are only almost in order).
+     */
+    private long getFirstSequenceAround(long time)
+    {
+        Samples samples = mSamples;
+        int i = findTimeBefore(samples, time);
+        return i < 1 ? 0 : samples.mSequences[i - 1];
+    }
+
+    /**
+     * Return a sequence number after every message sent at or before the
+     * time (one interval later).
+     */
+    private long getEndSequenceAround(long time)
+    {
+        Samples samples = mSamples;
+        int i = time == Long.MAX_VALUE ? samples.mSize : findTimeBefore(samples, time + 1) + 2;
+        return i >= samples.mSize ? Long.MAX_VALUE : samples.mSequences[i];
+    }
+
+    /**
+     * Return the last sample sent before the time, -1 if none.
+     */
+    private static int findTimeBefore(Samples samples, long time)
+    {
+        long[] times = samples.mTimes;
+        int low = 0;
+        int high = samples.mSize - 1;
+        int found = -1;
+
+        while (low <= high)
+        {
+            int middle = (low + high) >>> 1;
+
+            if (times[middle] < time)
+            {
+                found = middle;
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle - 1;
+            }
+        }
+
+        return found;
+    }
+
+
+    /**
+     * Sequence numbers in order, added by a single thread and read by any:
+     * the array is replaced (once copied) before the size is increased, so
+     * the readers see every value below the size.
+     */
+    private static class Postings
+    {
+        private volatile int[] mValues;
+        private volatile int mSize;
+
+        private Postings()
+        {
+            this(new int[4], 0);
+        }
+
+        private Postings(int[] values, int size)
+        {
+            mValues = values;
+            mSize = size;
+        }
+
+        private void add(int value)
+        {
+            int size = mSize;
+            int[] values = mValues;
+
+            if (size == values.length)
+            {
+                values = Arrays.copyOf(values, size + (size >> 1));
+                mValues = values;
+            }
+
+            values[size] = value;
+            mSize = size + 1;
+        }
+
+        private int size()
+        {
+            return mSize;
+        }
+
+        private int get(int index)
+        {
+            return mValues[index];
+        }
+
+        /**
+         * Return the number of values below end.
+         */
+        private int count(long end)
+        {
+            return findBefore(mValues, mSize, end) + 1;
+        }
+
+        /**
+         * Return the values from base: this if all of them, a copy if some,
+         * null if none.
+         */
+        private Postings from(int base)
+        {
+            int size = mSize;
+            int first = findBefore(mValues, size, base) + 1;
+
+            if (first == 0)
+            {
+                return this;
+            }
+
+            if (first == size)
+            {
+                return null;
+            }
+
+            // (Room to grow by half.)
+            return new Postings(Arrays.copyOfRange(mValues, first, 
+                        first + Math.max(4, size - first)), size - first);
+        }
+    }
+
+
+    /**
+     * Timestamps of messages, in order, published at once: the arrays are
+     * only written past the size of the samples already published.
+     */
+    private static class Samples
+    {
+        private static final Samples EMPTY = new Samples(new int[16], new long[16], 0);
+
+        private final int[] mSequences;
+        private final long[] mTimes;
+        private final int mSize;
+
+        private Samples(int[] sequences, long[] times, int size)
+        {
+            mSequences = sequences;
+            mTimes = times;
+            mSize = size;
+        }
+
+        /**
+         * Return these samples and one more (the arrays grown if full).
+         */
+        private Samples add(int sequence, long timestamp)
+        {
+            int[] sequences = mSequences;
+            long[] times = mTimes;
+
+            if (this == EMPTY || mSize == sequences.length)
+            {
+                sequences = Arrays.copyOf(sequences, Math.max(16, mSize * 2));
+                times = Arrays.copyOf(times, sequences.length);
+            }
+
+            sequences[mSize] = sequence;
+            times[mSize] = timestamp;
+            return new Samples(sequences, times, mSize + 1);
+        }
+
+        /**
+         * Return the samples from base.
+         */
+        private Samples from(int base)
+        {
+            int first = findBefore(mSequences, mSize, base) + 1;
+
+            if (first == 0)
+            {
+                return this;
+            }
+
+            int length = Math.max(16, mSize - first);
+            return new Samples(Arrays.copyOfRange(mSequences, first, first + length),
+                    Arrays.copyOfRange(mTimes, first, first + length), mSize - first);
+        }
+
+        /**
+         * Return the number of samples below end.
+         */
+        private int count(long end)
+        {
+            return findBefore(mSequences, mSize, end) + 1;
+        }
+    }
+}
@@ -1,14 +1,27 @@
 package crowdchat;
 
 import java.util.ArrayList; 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import java.io.File; 
-import java.io.FileOutputStream; 
 import java.io.FileInputStream; 
-import java.io.ObjectOutputStream; 
+import java.io.InputStream; 
+import java.io.IOException; 
 import java.io.ObjectInputStream; 
-import java.io.EOFException; 
+import java.io.ObjectStreamClass; 
+import java.io.Serializable; 
 
+import java.nio.file.Paths;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+
+import java.rmi.NotBoundException;
 import java.rmi.server.*; 
 import java.rmi.registry.Registry;
 import java.rmi.registry.LocateRegistry;
@@ -22,17 +35,77 @@ public class Server
 {
     public static void main(String[] args) 
     {
-        new Server(parseArgs(args));
+        String transport = parseOption(args, "transport", "rmi");
+
+        if (! transport.equals("rmi") && ! transport.equals("socket"))
+        {
+            System.err.println("Error: unknown transport \"" + transport + "\".");
+            System.exit(-1);
+        }
+
+        new Server(parseArgs(args), 
+                Integer.parseInt(parseOption(args, "port", 
+                        String.valueOf(Registry.REGISTRY_PORT))),
+                parseOption(args, "leader", null),
+                transport.equals("socket") ? Integer.parseInt(parseOption(args, "socket-port",
+                        String.valueOf(SocketLinker.DEFAULT_PORT))) : 0,
+                Long.parseLong(parseOption(args, "fsync-interval", "50")),
+                Long.parseLong(parseOption(args, "hot-window", 
+                        String.valueOf(DEFAULT_HOT_WINDOW))),
+                Long.parseLong(parseOption(args, "retention-time", "0")),
+                Long.parseLong(parseOption(args, "retention-size", "0")),
+                Integer.parseInt(parseOption(args, "queue-capacity", 
+                        String.valueOf(Linker.BasicLinker.DEFAULT_QUEUE_CAPACITY))),
+                Recipient.OverflowPolicy.parse(parseOption(args, "overflow-policy", 
+                        "drop-oldest")),
+                Integer.parseInt(parseOption(args, "batch-size", 
+                        String.valueOf(Linker.BasicLinker.DEFAULT_BATCH_SIZE))),
+                Long.parseLong(parseOption(args, "batch-window", 
+                        String.valueOf(Linker.BasicLinker.DEFAULT_BATCH_WINDOW))),
+                Long.parseLong(parseOption(args, "lease-duration", 
+                        String.valueOf(Linker.BasicLinker.DEFAULT_LEASE_DURATION))),
+                Integer.parseInt(parseOption(args, "compress-above", "-1")),
+                new RateLimiter(
+                        Double.parseDouble(parseOption(args, "sender-rate", 
+                                String.valueOf(RateLimiter.DEFAULT_SENDER_RATE))),
+                        Integer.parseInt(parseOption(args, "sender-burst", 
+                                String.valueOf(RateLimiter.DEFAULT_SENDER_BURST))),
+                        Double.parseDouble(parseOption(args, "global-rate", "0")),
+                        Integer.parseInt(parseOption(args, "global-burst", 
+                                String.valueOf(RateLimiter.DEFAULT_GLOBAL_BURST)))));
     }
 
+    // Messages kept uncompressed in the journals (milliseconds).
+    public static final long DEFAULT_HOT_WINDOW = 24 * 3600 * 1000L;
+
     public static String parseArgs(String[] args)
     {
-        if (args.length < 1) 
+        for (String arg : args)
+        {
+            if (! arg.startsWith("--"))
+            {
+                return arg;
+            }
+        }
+
+        return "localhost";
+    }
+
+    /**
+     * Return the value of the "--name=value" argument, or defaultValue
+     * if not given.
+     */
+    public static String parseOption(String[] args, String name, String defaultValue)
+    {
+        for (String arg : args)
         {
-            return "localhost";
+            if (arg.startsWith("--" + name + "="))
+            {
+                return arg.substring(name.length() + 3);
+            }
         }
 
-        return args[0];
+        return defaultValue;
     }
     
     
@@ -41,31 +114,112 @@ public class Server
         + File.separator + ".crowdchat";
     private final String HISTORY_FILE_PATH = HOME_DIR_PATH + File.separator 
         + "history"; 
+    private final String ROOMS_DIR_PATH = HOME_DIR_PATH + File.separator 
+        + "rooms"; 
+    // In the journal directory of every room.
+    private final String SEARCH_INDEX_FILE = "search.idx";
+    // Save the search indexes every 5 minutes (and on shut off).
+    private final long SEARCH_SAVE_INTERVAL = 5 * 60 * 1000;
+    // Messages read at once from the journal to catch up the search index.
+    private final int SEARCH_CATCH_UP_BATCH = 65536;
 
     // Linker btw server and clients.
     private final Linker.BasicLinker mLinker;
+    // Link with the other servers.
+    private final Node.BasicNode mNode;
+    // Every message of a room is saved in its journal as soon as sent.
+    private final Map<String, Journal> mJournals;
+    private final long mFsyncInterval;
+    private final long mHotWindow;
+    private final long mRetentionTime;
+    private final long mRetentionSize;
+    // Time taken to load the history of the rooms.
+    private final Histogram mLoadDurations;
+    // Every message of a room is indexed as soon as sent, and the index
+    // saved periodically.
+    private final Map<String, SearchIndex> mSearchIndexes;
+    private final ScheduledExecutorService mSearchSaver;
 
-    public Server(String host)
+    /**
+     * The server uses the registry of host on port. If leader ("host:port" 
+     * of the registry of another server) is given, this server is one of 
+     * its followers: the leader orders and saves the messages, and keeps the
+     * user names of every server. 
+     * If socketPort is not 0, the clients can also connect with a socket on
+     * it (see "SocketServer"); RMI is still used between the servers.
+     * The journals are synced at most once per fsyncInterval (milliseconds).
+     * Their messages older than hotWindow are compressed, and the ones older
+     * than retentionTime (milliseconds) or past retentionSize (bytes per 
+     * room) are deleted (0 for never).
+     * At most queueCapacity messages wait to be delivered to a client, then
+     * policy tells what to do with the new ones. They are delivered batchSize
+     * at a time at most, gathered for at most batchWindow milliseconds.
+     * A client not renewing its lease for leaseDuration milliseconds is
+     * disconnected.
+     * If compressAbove is not negative, the RMI calls and results of at 
+     * least compressAbove bytes are compressed (see 
+     * "CompressingSocketFactory").
+     * The messages sent faster than allowed by limiter are refused.
+     */
+    public Server(String host, int port, String leader, int socketPort, long fsyncInterval, 
+            long hotWindow, long retentionTime, long retentionSize, int queueCapacity, 
+            Recipient.OverflowPolicy policy, int batchSize, long batchWindow, 
+            long leaseDuration, int compressAbove, RateLimiter limiter)
     {
-        mLinker = new Linker.BasicLinker();
-        // Create/check existence of message history file. 
-        createHomeDir();
-        createHistoryFile();
-        // And retrieve this history (if needed).
-        retrieveMessageHistory();
+        mLinker = new Linker.BasicLinker(queueCapacity, policy, batchSize, batchWindow);
+        mLinker.setLeaseDuration(leaseDuration);
+        mLinker.setRateLimiter(limiter);
+        mJournals = new ConcurrentHashMap<>();
+        mFsyncInterval = fsyncInterval;
+        mHotWindow = hotWindow;
+        mRetentionTime = retentionTime;
+        mRetentionSize = retentionSize;
+        mLoadDurations = new Histogram();
+        mSearchIndexes = new ConcurrentHashMap<>();
+        mSearchSaver = Executors.newSingleThreadScheduledExecutor(
+                r ->
+                {
+                    Thread thread = new Thread(r, "crowdchat-search");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+        mSearchSaver.scheduleWithFixedDelay(
+                () -> mSearchIndexes.values().forEach(SearchIndex::save),
+                SEARCH_SAVE_INTERVAL, SEARCH_SAVE_INTERVAL, TimeUnit.MILLISECONDS);
+
+        String id = host + ":" + port;
+        mNode = leader == null ? createLeader(id) : createFollower(id, leader);
+        mLinker.setNamespace(mNode);
 
         try 
         {
             // Avoid the "rmiregistry & / start rmiregistry" command if on local.
             if (host.equals("localhost"))
             {
-                LocateRegistry.createRegistry(Registry.REGISTRY_PORT);
+                LocateRegistry.createRegistry(port);
             }
-            // Register the remoted object.
+            // Register the remoted objects (default sockets if no factory).
+            CompressingSocketFactory factory = compressAbove < 0 ? null
+                : new CompressingSocketFactory(compressAbove);
             Linker linker_stub = (Linker) 
-                UnicastRemoteObject.exportObject(mLinker, 0);
-            Registry registry = LocateRegistry.getRegistry(host);
+                UnicastRemoteObject.exportObject(mLinker, 0, factory, factory);
+            Node node_stub = (Node) UnicastRemoteObject.exportObject(mNode, 0, factory, factory);
+            Registry registry = LocateRegistry.getRegistry(host, port);
             registry.rebind("rmi://server/ConnectService", linker_stub);
+            registry.rebind("rmi://server/Node", node_stub);
+            // Get the messages ordered by the leader from now on (if a follower).
+            mNode.join(node_stub);
+
+            if (socketPort != 0)
+            {
+                new SocketServer(mLinker, socketPort).start();
+            }
+
+            new ServerMetrics(mLinker, mJournals.values(), mLoadDurations).register();
+
+            // Forget the clients gone without disconnecting.
+            mLinker.setExpiryListener((room, name) -> unbindClient(registry, room, name));
             // Save the messages when exiting.  
             Runtime.getRuntime().addShutdownHook(new Thread(this::saveMessageHistory));
         } 
@@ -74,55 +228,250 @@ public class Server
             System.err.println("Error: " + e);
         }
 
+        try
+        {
+            // Load the default room right now (and the history of older servers).
+            mLinker.getRoom(Linker.DEFAULT_ROOM);
+        }
+        catch (Exception e) 
+        {
+            System.exit(-1);
+        }
+
         // Debug.
         System.out.println ("Server ready...");
     }
 
-    public void retrieveMessageHistory()
+    /**
+     * Create the node of the leader: its rooms are saved in journals, and 
+     * their messages are sent to the followers.
+     */
+    private Node.BasicNode createLeader(String id)
+    {
+        Node.BasicNode node = new Node.BasicNode(id, mLinker, null);
+        // Create/check existence of the crowdchat directory. 
+        createHomeDir();
+        // Every room retrieves its history when first used.
+        mLinker.setRoomListener(
+                room -> 
+                {
+                    retrieveMessageHistory(room);
+                    room.setBatchListener(
+                            (sequence, messages) -> node.relay(room.getId(), sequence, messages));
+                }
+        );
+
+        return node;
+    }
+
+    /**
+     * Create the node of a follower of leader ("host:port" of its registry):
+     * its rooms get their messages from the leader.
+     */
+    private Node.BasicNode createFollower(String id, String leader)
     {
         try
         {
-            // Open a stream to the file.
-            ObjectInputStream stream = new ObjectInputStream(
-                    new FileInputStream(HISTORY_FILE_PATH));
-            // Then read the messages.
-            @SuppressWarnings("unchecked")
-            ArrayList<Linker.Message> messages = (ArrayList<Linker.Message>) stream.readObject(); 
+            String[] address = leader.split(":");
+            Registry registry = LocateRegistry.getRegistry(address[0], 
+                    address.length > 1 ? Integer.parseInt(address[1]) : Registry.REGISTRY_PORT);
+            Linker upstream = (Linker) registry.lookup("rmi://server/ConnectService");
+            Node node = (Node) registry.lookup("rmi://server/Node");
+            // The leader orders and saves the messages.
+            mLinker.setUpstream(upstream);
+            mLinker.setRoomListener(room -> retrieveLeaderHistory(room, upstream));
+
+            return new Node.BasicNode(id, mLinker, node);
+        }
+        catch (Exception e)
+        {
+            System.err.println("Error: cannot join the leader " + leader + ": " + e);
+            System.exit(-1);
+            return null;
+        }
+    }
 
-            if (messages != null)
+    /**
+     * Remove the client from the registry.
+     */
+    private void unbindClient(Registry registry, String room, String name)
+    {
+        try
+        {
+            registry.unbind("rmi://client/" + room + "/" + name);
+        }
+        catch (NotBoundException e)
+        {
+            // Already done.
+        }
+        catch (Exception e)
+        {
+            System.err.println("Error: cannot unbind \"" + name + "\": " + e);
+        }
+    }
+
+    /**
+     * Replay the last segment of the journal of the room (the older messages
+     * are read from the journal on demand), and then save every new message 
+     * of the room in it.
+     */
+    public void retrieveMessageHistory(Room room)
+    {
+        String path = ROOMS_DIR_PATH + File.separator + room.getId();
+        long start = System.nanoTime();
+
+        try
+        {
+            Journal journal = new Journal(Paths.get(path), mFsyncInterval);
+            ArrayList<Linker.Message> messages = journal.replay();
+            long base = journal.getReplayedBase();
+            boolean isLegacy = messages.isEmpty() && base == 0 
+                && room.getId().equals(Linker.DEFAULT_ROOM);
+
+            if (isLegacy)
             {
-                mLinker.setClientMessages(messages);
+                // History saved by an older server (before the journal).
+                messages = retrieveLegacyMessageHistory();
             }
 
-            stream.close();
+            MessageLog log = new MessageLog(base);
+            log.appendAll(messages);
+
+            if (isLegacy)
+            {
+                // Now numbered.
+                messages.forEach(journal::append);
+            }
+
+            SearchIndex index = retrieveSearchIndex(path, journal, log);
+            room.setHistory(log, journal);
+            room.setSearchIndex(index);
+            // Saved before acknowledged.
+            room.setAppendListener(journal::append);
+            room.setMessageListener(index::add);
+            journal.setRetention(mHotWindow, mRetentionTime, mRetentionSize);
+            // No hit in the messages deleted.
+            journal.setRetentionListener(index::prune);
+            // Only the messages of the active segment are kept in memory.
+            journal.setRollListener(room::trimHistory);
+            journal.start();
+            mJournals.put(room.getId(), journal);
+            mSearchIndexes.put(room.getId(), index);
+            mLoadDurations.record(System.nanoTime() - start);
+        }
+        catch (Exception e) 
+        {
+            System.err.println("Error: cannot retrieve messages in the journal " +
+                    path + "."); 
+            // The room cannot be used.
+            throw new IllegalStateException("Cannot open the room " + room.getId() + ".", e);
+        }
+    }   
+
+    /**
+     * Read the search index saved in the journal directory (path) of the
+     * room, and index the messages added since it was saved.
+     */
+    private SearchIndex retrieveSearchIndex(String path, Journal journal, MessageLog log)
+        throws IOException
+    {
+        SearchIndex index = new SearchIndex(Paths.get(path, SEARCH_INDEX_FILE));
+        index.load();
+
+        if (index.getEnd() > log.getEnd())
+        {
+            // Saved with messages lost by the journal since.
+            index.clear();
         }
-        catch (EOFException e) 
+
+        // Saved before the last deletion of the retention.
+        index.prune(journal.getFirstSequence());
+
+        for (long from = Math.max(index.getEnd(), journal.getFirstSequence()); 
+                from < log.getBase(); from += SEARCH_CATCH_UP_BATCH)
         {
-            // If no EOFException then the history file is just empty => normal behavior.
+            journal.read(from, Math.min(log.getBase(), from + SEARCH_CATCH_UP_BATCH))
+                .forEach(index::add);
+        }
+
+        log.snapshot(index.getEnd(), log.getEnd()).forEach(index::add);
+        return index;
+    }
+
+    /**
+     * Read the history of the room from the leader (which sends the new 
+     * messages of the room afterwards).
+     */
+    private void retrieveLeaderHistory(Room room, Linker upstream)
+    {
+        long start = System.nanoTime();
+
+        try
+        {
+            long end = upstream.getLastMessages(room.getId(), 0).getFirstSequence();
+            room.setHistory(new MessageLog(end), 
+                    (from, to) -> upstream.getMessagesBefore(room.getId(), to, 
+                        (int) (to - from)).getMessages());
+            mLoadDurations.record(System.nanoTime() - start);
         }
         catch (Exception e) 
         {
-            // If no EOFException then the history file is empty.
-            System.err.println("Error: cannot retrieve messages in the history file."); 
+            System.err.println("Error: cannot retrieve messages of the room " 
+                    + room.getId() + " from the leader."); 
+            // The room cannot be used.
+            throw new IllegalStateException("Cannot open the room " + room.getId() + ".", e);
         }
-    }   
+    }
 
+    /**
+     * Write the messages not yet in the journals and close them, and save
+     * the search indexes.
+     */
     public void saveMessageHistory()
     {
-        try
+        mJournals.values().forEach(Journal::close);
+        mSearchIndexes.values().forEach(SearchIndex::save);
+    }
+
+    /**
+     * Read the history file written by the servers without journal (one
+     * serialized list saved on shut off), and delete it.
+     */
+    private ArrayList<Linker.Message> retrieveLegacyMessageHistory()
+    {
+        File file = new File(HISTORY_FILE_PATH);
+        ArrayList<Linker.Message> messages = new ArrayList<>();
+
+        if (! file.exists() || file.length() == 0)
         {
-            // Open a stream to the file.
-            ObjectOutputStream stream = new ObjectOutputStream(
-                    new FileOutputStream(HISTORY_FILE_PATH));
-            // Then write the messages. 
-            stream.writeObject(mLinker.getClientMessages()); 
+            return messages;
+        }
+
+        try (ObjectInputStream stream = new LegacyInputStream(
+                    new FileInputStream(file)))
+        {
+            @SuppressWarnings("unchecked")
+            ArrayList<LegacyMessage> legacy = (ArrayList<LegacyMessage>) stream.readObject(); 
 
-            stream.close();
+            if (legacy != null)
+            {
+                legacy.forEach(m -> messages.add(m.toMessage()));
+            }
         }
         catch (Exception e) 
         {
-            System.err.println("Error: cannot save messages in the history file."); 
+            System.err.println("Error: cannot retrieve messages in the history file."); 
+            return messages;
+        }
+
+        // Now in the journal.
+        if (! file.delete())
+        {
+            System.err.println("Error: cannot delete the history file " + 
+                    HISTORY_FILE_PATH + "."); 
         }
+
+        return messages;
     }
 
     private void createHomeDir()
@@ -146,24 +495,49 @@ public class Server
         }
     }
 
-    private void createHistoryFile()
+    /**
+     * A message as serialized by the servers without journal.
+     */
+    private static class LegacyMessage implements Serializable
     {
-        File file = new File(HISTORY_FILE_PATH);
+        private static final long serialVersionUID = 667363824879925614L;
 
-        try
+        private String mTime;
+        private String mSender;
+        private String mContent;
+
+        private Linker.Message toMessage()
         {
-            if (! file.exists() && ! file.createNewFile())
-            {
-                System.err.println("Error: cannot create the history file " +
-                        HISTORY_FILE_PATH + ".");
-                System.exit(-1);
-            }
+            // Only the time of the day was kept: taken as today.
+            return new Linker.Message(LocalDate.now().atTime(LocalTime.parse(mTime))
+                    .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(), 
+                    mSender, mContent);
         }
-        catch (Exception e)
+    }
+
+    /**
+     * Read the messages of the legacy history file as "LegacyMessage" 
+     * ("Linker.Message" is not serialized the same way anymore).
+     */
+    private static class LegacyInputStream extends ObjectInputStream
+    {
+        private LegacyInputStream(InputStream in) throws IOException
         {
-            System.err.println("Error: cannot create the history file " + 
-                    HISTORY_FILE_PATH + "."); 
-            System.exit(-1);
+            super(in);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() 
+            throws IOException, ClassNotFoundException
+        {
+            ObjectStreamClass descriptor = super.readClassDescriptor();
+
+            if (descriptor.getName().equals(Linker.Message.class.getName()))
+            {
+                return ObjectStreamClass.lookup(LegacyMessage.class);
+            }
+
+            return descriptor;
         }
     }
 }
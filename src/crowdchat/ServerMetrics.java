@@ -0,0 +1,199 @@
+package crowdchat;
+
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+
+/**
+ * Metrics of the server, read from its linker and journals: registered as
+ * the MBean "crowdchat:type=Server".
+ */
+public class ServerMetrics implements ServerMetricsMBean
+{
+    // Constants.
+    public static final String NAME = "crowdchat:type=Server";
+    // Period of the messages rate (milliseconds).
+    private static final long SAMPLE_INTERVAL = 1000;
+
+    private final Linker.BasicLinker mLinker;
+    private final Collection<Journal> mJournals;
+    private final Histogram mLoadDurations;
+    private final ScheduledExecutorService mSampler;
+    // Messages spread at the last sample, and the rate since the one before.
+    private long mLastMessages;
+    private volatile double mMessagesPerSecond;
+
+    /**
+     * The history of the server is in journals (empty on the followers),
+     * and loadDurations counts the time taken to load the rooms.
+     */
+    public ServerMetrics(Linker.BasicLinker linker, Collection<Journal> journals, 
+            Histogram loadDurations)
+    {
+        mLinker = linker;
+        mJournals = journals;
+        mLoadDurations = loadDurations;
+        mSampler = Executors.newSingleThreadScheduledExecutor(
+                r -> 
+                {
+                    Thread thread = new Thread(r, "crowdchat-metrics");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+    }
+
+    /**
+     * Register the MBean and start measuring the messages rate.
+     */
+    public void register() throws Exception
+    {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(NAME));
+        mLastMessages = mLinker.getMessagesSpread();
+        mSampler.scheduleAtFixedRate(this::sample, SAMPLE_INTERVAL, SAMPLE_INTERVAL, 
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void sample()
+    {
+        long messages = mLinker.getMessagesSpread();
+        mMessagesPerSecond = (messages - mLastMessages) * 1000.0 / SAMPLE_INTERVAL;
+        mLastMessages = messages;
+    }
+
+    @Override
+    public int getConnectedClients()
+    {
+        return mLinker.getClientCount();
+    }
+
+    @Override
+    public double getMessagesPerSecond()
+    {
+        return mMessagesPerSecond;
+    }
+
+    @Override
+    public long getHistorySize()
+    {
+        return mLinker.getHistorySize();
+    }
+
+    @Override
+    public long getHistoryBytes()
+    {
+        return mJournals.stream().mapToLong(Journal::getSize).sum();
+    }
+
+    @Override
+    public long getFailedCallbacks()
+    {
+        return mLinker.getFailedCalls();
+    }
+
+    @Override
+    public long getSlowDisconnections()
+    {
+        return mLinker.getSlowDisconnections();
+    }
+
+    @Override
+    public long getExpiredSessions()
+    {
+        return mLinker.getExpiredSessions();
+    }
+
+    @Override
+    public long getRejectedMessages()
+    {
+        return mLinker.getRejectedMessages();
+    }
+
+    @Override
+    public long getAddMessageLatencyP50()
+    {
+        return mLinker.getAddLatencies().getPercentile(0.5);
+    }
+
+    @Override
+    public long getAddMessageLatencyP99()
+    {
+        return mLinker.getAddLatencies().getPercentile(0.99);
+    }
+
+    @Override
+    public long[] getAddMessageLatencies()
+    {
+        return mLinker.getAddLatencies().getCounts();
+    }
+
+    @Override
+    public long getFanOutDurationP50()
+    {
+        return mLinker.getFanOutDurations().getPercentile(0.5);
+    }
+
+    @Override
+    public long getFanOutDurationP99()
+    {
+        return mLinker.getFanOutDurations().getPercentile(0.99);
+    }
+
+    @Override
+    public long[] getFanOutDurations()
+    {
+        return mLinker.getFanOutDurations().getCounts();
+    }
+
+    @Override
+    public long getHistoryLoadDurationP50()
+    {
+        return mLoadDurations.getPercentile(0.5);
+    }
+
+    @Override
+    public long getHistoryLoadDurationP99()
+    {
+        return mLoadDurations.getPercentile(0.99);
+    }
+
+    @Override
+    public long[] getHistoryLoadDurations()
+    {
+        return mLoadDurations.getCounts();
+    }
+
+    @Override
+    public long getHistorySaveDurationP50()
+    {
+        return getSaveDurations().getPercentile(0.5);
+    }
+
+    @Override
+    public long getHistorySaveDurationP99()
+    {
+        return getSaveDurations().getPercentile(0.99);
+    }
+
+    @Override
+    public long[] getHistorySaveDurations()
+    {
+        return getSaveDurations().getCounts();
+    }
+
+    /**
+     * Return the save durations of every journal.
+     */
+    private Histogram getSaveDurations()
+    {
+        Histogram durations = new Histogram();
+        mJournals.forEach(journal -> durations.add(journal.getSaveDurations()));
+        return durations;
+    }
+}
@@ -0,0 +1,50 @@
+package crowdchat;
+
+
+/**
+ * What the server tells through JMX ("crowdchat:type=Server", e.g. with
+ * jconsole). The durations are in microseconds; the histograms count them
+ * by powers of two (see "Histogram").
+ */
+public interface ServerMetricsMBean
+{
+    public int getConnectedClients();
+
+    public double getMessagesPerSecond();
+
+    public long getHistorySize();
+
+    public long getHistoryBytes();
+
+    public long getFailedCallbacks();
+
+    public long getSlowDisconnections();
+
+    public long getExpiredSessions();
+
+    public long getRejectedMessages();
+
+    public long getAddMessageLatencyP50();
+
+    public long getAddMessageLatencyP99();
+
+    public long[] getAddMessageLatencies();
+
+    public long getFanOutDurationP50();
+
+    public long getFanOutDurationP99();
+
+    public long[] getFanOutDurations();
+
+    public long getHistoryLoadDurationP50();
+
+    public long getHistoryLoadDurationP99();
+
+    public long[] getHistoryLoadDurations();
+
+    public long getHistorySaveDurationP50();
+
+    public long getHistorySaveDurationP99();
+
+    public long[] getHistorySaveDurations();
+}
@@ -0,0 +1,649 @@
+package crowdchat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.rmi.RemoteException;
+
+
+/**
+ * A "Linker" on the other end of a socket (served by a "SocketServer"),
+ * instead of RMI. Every call is a frame answered by a frame with the same
+ * id, and the server delivers the messages of the users connected through
+ * this linker on the same socket (so the client does not need to be
+ * reachable by the server).
+ * A frame is its length (4 bytes, not counted), its type (1 byte), its id
+ * (4 bytes) and its content.
+ */
+public class SocketLinker implements Linker
+{
+    // Constants.
+    public static final int DEFAULT_PORT = 1199;
+    // Longer frames are refused (the length is likely corrupted).
+    static final int MAX_FRAME_SIZE = 16 << 20;
+
+    // Calls (client to server), with the arguments of the "Linker" method.
+    static final byte ADD_MESSAGE = 1;
+    static final byte ADD_MESSAGES = 2;
+    // The id of the user on this connection follows the name.
+    static final byte CONNECT = 3;
+    static final byte DISCONNECT = 4;
+    static final byte RENEW_LEASE = 5;
+    static final byte GET_CLIENT_NAMES = 6;
+    static final byte GET_PRESENCE = 7;
+    static final byte GET_CLIENT_MESSAGES = 8;
+    static final byte GET_LAST_MESSAGES = 9;
+    static final byte GET_MESSAGES_BEFORE = 10;
+    static final byte SEARCH = 12;
+    static final byte GET_MESSAGES_AFTER = 13;
+    // Answers (server to client), with the id of the call.
+    static final byte RESULT = 20;
+    static final byte ERROR = 21;
+    // The messages were refused: the time to wait (see "RateLimitException").
+    static final byte LIMITED = 22;
+    // Deliveries (server to client), with the id of the user, not answered.
+    static final byte WRITE_MESSAGE = 30;
+    static final byte WRITE_MESSAGES = 31;
+    static final byte NOTIFY_CONNECTED = 32;
+    static final byte NOTIFY_DISCONNECTED = 33;
+
+    /**
+     * The content of a frame received, which knows how many bytes are left
+     * (the lengths read are checked against it).
+     */
+    static class FrameInput extends DataInputStream
+    {
+        FrameInput(byte[] frame)
+        {
+            super(new ByteArrayInputStream(frame));
+        }
+
+        int left()
+        {
+            return ((ByteArrayInputStream) in).available();
+        }
+    }
+
+    /**
+     * Write the content of a frame.
+     */
+    interface Content
+    {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Return the frame of this type and id, with its content.
+     */
+    static ByteBuffer frame(byte type, int id, Content content) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        // Length written afterwards.
+        out.writeInt(0);
+        out.writeByte(type);
+        out.writeInt(id);
+        content.write(out);
+
+        ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+        frame.putInt(0, frame.remaining() - 4);
+        return frame;
+    }
+
+
+    private final InetSocketAddress mAddress;
+    private Connection mConnection;
+    // The users connected through this linker, by id.
+    private final Map<Integer, Client> mClients;
+    // Id of the users, by "room/name".
+    private final Map<String, Integer> mIds;
+    private final AtomicInteger mNextId;
+    // Call the clients, in order (they may call the linker meanwhile).
+    private final ExecutorService mDeliverer;
+
+    /**
+     * Connect to the "SocketServer" on host and port.
+     */
+    public SocketLinker(String host, int port) throws IOException
+    {
+        mAddress = new InetSocketAddress(host, port);
+        mClients = new ConcurrentHashMap<>();
+        mIds = new ConcurrentHashMap<>();
+        mNextId = new AtomicInteger();
+        mDeliverer = Executors.newSingleThreadExecutor(
+                r ->
+                {
+                    Thread thread = new Thread(r, "crowdchat-socket-delivery");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+        mConnection = new Connection();
+    }
+
+    @Override
+    public long addMessage(String room, String sender, String message) throws RemoteException
+    {
+        return call(ADD_MESSAGE,
+                out ->
+                {
+                    Linker.Message.writeString(out, room);
+                    Linker.Message.writeString(out, sender);
+                    Linker.Message.writeString(out, message);
+                },
+                DataInputStream::readLong
+        );
+    }
+
+    @Override
+    public void addMessages(String room, String sender, ArrayList<String> messages)
+        throws RemoteException
+    {
+        call(ADD_MESSAGES,
+                out ->
+                {
+                    Linker.Message.writeString(out, room);
+                    Linker.Message.writeString(out, sender);
+                    writeStrings(out, messages);
+                },
+                in -> null
+        );
+    }
+
+    /**
+     * The server delivers the messages to client through this linker (the
+     * client is not sent to the server).
+     */
+    @Override
+    public boolean connect(String room, String name, Client client) throws RemoteException
+    {
+        int id = mNextId.incrementAndGet();
+        mClients.put(id, client);
+        boolean isConnected = false;
+
+        try
+        {
+            isConnected = call(CONNECT,
+                    out ->
+                    {
+                        writeUser(out, room, name);
+                        out.writeInt(id);
+                    },
+                    DataInputStream::readBoolean
+            );
+        }
+        finally
+        {
+            if (! isConnected)
+            {
+                mClients.remove(id);
+            }
+        }
+
+        if (! isConnected)
+        {
+            return false;
+        }
+
+        Integer previous = mIds.put(room + "/" + name, id);
+
+        if (previous != null)
+        {
+            mClients.remove(previous);
+        }
+
+        return true;
+    }
+
+    @Override
+    public void disconnect(String room, String name) throws RemoteException
+    {
+        call(DISCONNECT, out -> writeUser(out, room, name), in -> null);
+
+        Integer id = mIds.remove(room + "/" + name);
+
+        if (id != null)
+        {
+            mClients.remove(id);
+        }
+    }
+
+    @Override
+    public long renewLease(String room, String name) throws RemoteException
+    {
+        return call(RENEW_LEASE, out -> writeUser(out, room, name), DataInputStream::readLong);
+    }
+
+    @Override
+    public ArrayList<String> getClientNames(String room) throws RemoteException
+    {
+        return call(GET_CLIENT_NAMES, out -> Linker.Message.writeString(out, room), 
+                SocketLinker::readStrings);
+    }
+
+    @Override
+    public Linker.Presence getPresence(String room, long version) throws RemoteException
+    {
+        return call(GET_PRESENCE,
+                out ->
+                {
+                    Linker.Message.writeString(out, room);
+                    out.writeLong(version);
+                },
+                in ->
+                {
+                    Linker.Presence presence = new Linker.Presence();
+                    presence.read(in);
+                    return presence;
+                }
+        );
+    }
+
+    @Override
+    public ArrayList<Linker.Message> getClientMessages(String room) throws RemoteException
+    {
+        return call(GET_CLIENT_MESSAGES, out -> Linker.Message.writeString(out, room), 
+                Linker.Message::readAll);
+    }
+
+    @Override
+    public Linker.Page getLastMessages(String room, int count) throws RemoteException
+    {
+        return call(GET_LAST_MESSAGES,
+                out ->
+                {
+                    Linker.Message.writeString(out, room);
+                    out.writeInt(count);
+                },
+                SocketLinker::readPage
+        );
+    }
+
+    @Override
+    public Linker.Page getMessagesBefore(String room, long sequence, int count)
+        throws RemoteException
+    {
+        return call(GET_MESSAGES_BEFORE,
+                out ->
+                {
+                    Linker.Message.writeString(out, room);
+                    out.writeLong(sequence);
+                    out.writeInt(count);
+                },
+                SocketLinker::readPage
+        );
+    }
+
+    @Override
+    public Linker.Page getMessagesAfter(String room, long sequence, int count)
+        throws RemoteException
+    {
+        return call(GET_MESSAGES_AFTER,
+                out ->
+                {
+                    Linker.Message.writeString(out, room);
+                    out.writeLong(sequence);
+                    out.writeInt(count);
+                },
+                SocketLinker::readPage
+        );
+    }
+
+    /**
+     * Not served through sockets: replacing the history is not an operation
+     * of the clients.
+     */
+    @Override
+    public void setClientMessages(String room, ArrayList<Linker.Message> messages)
+        throws RemoteException
+    {
+        throw new RemoteException("The history cannot be replaced through a socket.");
+    }
+
+    @Override
+    public Linker.Hits search(String room, String query, String sender, long since, 
+            long until, int limit, long cursor) throws RemoteException
+    {
+        return call(SEARCH,
+                out ->
+                {
+                    Linker.Message.writeString(out, room);
+                    Linker.Message.writeString(out, query);
+                    out.writeBoolean(sender != null);
+
+                    if (sender != null)
+                    {
+                        Linker.Message.writeString(out, sender);
+                    }
+
+                    out.writeLong(since);
+                    out.writeLong(until);
+                    out.writeInt(limit);
+                    out.writeLong(cursor);
+                },
+                in ->
+                {
+                    Linker.Hits hits = new Linker.Hits();
+                    hits.read(in);
+                    return hits;
+                }
+        );
+    }
+
+    /**
+     * Close the socket (the users connected through it are disconnected).
+     */
+    public synchronized void close()
+    {
+        mConnection.close();
+        mDeliverer.shutdown();
+    }
+
+    /**
+     * Send the call and return the content of its result. A new connection
+     * is opened if the previous one was lost (its users were disconnected
+     * by the server, and will have to connect again).
+     */
+    private <T> T call(byte type, Content content, Result<T> result) throws RemoteException
+    {
+        Connection connection;
+
+        synchronized (this)
+        {
+            if (mConnection.isClosed())
+            {
+                try
+                {
+                    mConnection = new Connection();
+                }
+                catch (IOException e)
+                {
+                    throw new RemoteException("Cannot connect to " + mAddress + ".", e);
+                }
+            }
+
+            connection = mConnection;
+        }
+
+        DataInputStream in = connection.call(type, content);
+
+        try
+        {
+            return result.read(in);
+        }
+        catch (IOException e)
+        {
+            throw new RemoteException("Malformed result.", e);
+        }
+    }
+
+    /**
+     * Read the result of a call.
+     */
+    private interface Result<T>
+    {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    static void writeUser(DataOutputStream out, String room, String name) throws IOException
+    {
+        Linker.Message.writeString(out, room);
+        Linker.Message.writeString(out, name);
+    }
+
+    static void writeStrings(DataOutputStream out, List<String> strings) throws IOException
+    {
+        out.writeInt(strings.size());
+
+        for (String s : strings)
+        {
+            Linker.Message.writeString(out, s);
+        }
+    }
+
+    static ArrayList<String> readStrings(DataInputStream in) throws IOException
+    {
+        int size = Linker.Message.checkLength(in, in.readInt());
+        ArrayList<String> strings = new ArrayList<>(size);
+
+        for (int i = 0; i < size; i++)
+        {
+            strings.add(Linker.Message.readString(in));
+        }
+
+        return strings;
+    }
+
+    private static Linker.Page readPage(DataInputStream in) throws IOException
+    {
+        Linker.Page page = new Linker.Page();
+        page.read(in);
+        return page;
+    }
+
+    /**
+     * Call the client with the delivery (type) read from in.
+     */
+    private static void deliver(Client client, byte type, DataInputStream in)
+        throws IOException
+    {
+        if (type == WRITE_MESSAGE)
+        {
+            long sequence = in.readLong();
+            long coalesced = Linker.Message.readVarLong(in);
+            Linker.Message message = new Linker.Message(sequence, in.readLong(),
+                    Linker.Message.readString(in), Linker.Message.readString(in));
+            message.setFirstSequence(sequence - coalesced);
+            client.writeMessage(message);
+        }
+        else if (type == WRITE_MESSAGES)
+        {
+            client.writeMessages(Linker.Message.readAll(in));
+        }
+        else if (type == NOTIFY_CONNECTED)
+        {
+            client.notifyConnected(Linker.Message.readString(in));
+        }
+        else if (type == NOTIFY_DISCONNECTED)
+        {
+            client.notifyDisconnected(Linker.Message.readString(in));
+        }
+    }
+
+
+    /**
+     * One socket, with the calls waiting for their result.
+     */
+    private class Connection
+    {
+        private final Socket mSocket;
+        private final OutputStream mOutput;
+        private final Map<Integer, CompletableFuture<DataInputStream>> mCalls;
+        private final AtomicInteger mNextCall;
+        private volatile boolean mIsClosed;
+
+        private Connection() throws IOException
+        {
+            mSocket = new Socket();
+            mSocket.setTcpNoDelay(true);
+            mSocket.connect(mAddress);
+            mOutput = new BufferedOutputStream(mSocket.getOutputStream());
+            mCalls = new ConcurrentHashMap<>();
+            mNextCall = new AtomicInteger();
+            mIsClosed = false;
+
+            Thread reader = new Thread(this::read, "crowdchat-socket-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private DataInputStream call(byte type, Content content) throws RemoteException
+        {
+            int id = mNextCall.incrementAndGet();
+            CompletableFuture<DataInputStream> result = new CompletableFuture<>();
+            mCalls.put(id, result);
+
+            try
+            {
+                ByteBuffer frame = frame(type, id, content);
+
+                synchronized (mOutput)
+                {
+                    mOutput.write(frame.array(), 0, frame.limit());
+                    mOutput.flush();
+                }
+
+                if (mIsClosed)
+                {
+                    // Closed before the call was registered.
+                    result.completeExceptionally(new IOException("Connection closed."));
+                }
+
+                return result.get();
+            }
+            catch (IOException e)
+            {
+                close();
+                throw new RemoteException("Connection lost.", e);
+            }
+            catch (ExecutionException e)
+            {
+                if (e.getCause() instanceof RemoteException)
+                {
+                    throw (RemoteException) e.getCause();
+                }
+
+                throw new RemoteException("Connection lost.", e.getCause());
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Call interrupted.", e);
+            }
+            finally
+            {
+                mCalls.remove(id);
+            }
+        }
+
+        /**
+         * Reader: complete the calls with their result, and give the
+         * deliveries to the clients, until the connection is lost.
+         */
+        private void read()
+        {
+            try (DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(mSocket.getInputStream())))
+            {
+                while (true)
+                {
+                    int length = in.readInt();
+
+                    if (length < 5 || length > MAX_FRAME_SIZE)
+                    {
+                        throw new IOException("Malformed frame.");
+                    }
+
+                    byte[] frame = new byte[length];
+                    in.readFully(frame);
+
+                    DataInputStream content = new FrameInput(frame);
+                    byte type = content.readByte();
+                    int id = content.readInt();
+
+                    if (type == RESULT || type == ERROR || type == LIMITED)
+                    {
+                        CompletableFuture<DataInputStream> result = mCalls.get(id);
+
+                        if (result == null)
+                        {
+                            continue;
+                        }
+
+                        if (type == RESULT)
+                        {
+                            result.complete(content);
+                        }
+                        else if (type == LIMITED)
+                        {
+                            result.completeExceptionally(
+                                    new Linker.RateLimitException(content.readLong()));
+                        }
+                        else
+                        {
+                            result.completeExceptionally(
+                                    new RemoteException(Linker.Message.readString(content)));
+                        }
+                    }
+                    else
+                    {
+                        Client client = mClients.get(id);
+
+                        if (client != null)
+                        {
+                            mDeliverer.execute(() -> deliverSafely(client, type, content));
+                        }
+                    }
+                }
+            }
+            catch (Exception e)
+            {
+                close();
+            }
+        }
+
+        private void deliverSafely(Client client, byte type, DataInputStream content)
+        {
+            try
+            {
+                deliver(client, type, content);
+            }
+            catch (Exception e)
+            {
+                System.err.println("Error: cannot deliver a message: " + e);
+            }
+        }
+
+        private boolean isClosed()
+        {
+            return mIsClosed;
+        }
+
+        private void close()
+        {
+            mIsClosed = true;
+
+            try
+            {
+                mSocket.close();
+            }
+            catch (IOException ignored)
+            {
+            }
+
+            IOException closed = new IOException("Connection closed.");
+            mCalls.values().forEach(result -> result.completeExceptionally(closed));
+        }
+    }
+}
@@ -0,0 +1,544 @@
+package crowdchat;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.rmi.RemoteException;
+
+
+/**
+ * Serve a "Linker" to the clients connected with a "SocketLinker" (one
+ * socket per client, see its frames), instead of RMI. A single thread reads
+ * and writes every socket (non-blocking), and the calls run on a pool (they
+ * may wait, e.g. for the leader). The users connected through a socket are
+ * disconnected as soon as it is closed.
+ */
+public class SocketServer
+{
+    // Constants.
+    private static final int READ_BUFFER_SIZE = 64 << 10;
+    // Bytes waiting to be sent to a client, after which it is too slow (the
+    // messages it misses are handled by its "Recipient" as failures).
+    private static final long MAX_PENDING_BYTES = 8 << 20;
+
+    private final Linker.BasicLinker mLinker;
+    private final Selector mSelector;
+    private final ServerSocketChannel mServerChannel;
+    // Connections with frames to send, to be watched for writing.
+    private final ConcurrentLinkedQueue<Connection> mWriters;
+    private final ExecutorService mWorkers;
+    private final Thread mThread;
+
+    /**
+     * Listen on port (0 for any free port) for the clients of linker.
+     */
+    public SocketServer(Linker.BasicLinker linker, int port) throws IOException
+    {
+        mLinker = linker;
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.bind(new InetSocketAddress(port));
+        mServerChannel.configureBlocking(false);
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+        mWriters = new ConcurrentLinkedQueue<>();
+        mWorkers = Executors.newCachedThreadPool(
+                r ->
+                {
+                    Thread thread = new Thread(r, "crowdchat-socket-call");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+        mThread = new Thread(this::run, "crowdchat-socket-server");
+        mThread.setDaemon(true);
+    }
+
+    public void start()
+    {
+        mThread.start();
+    }
+
+    public int getPort()
+    {
+        return mServerChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Stop listening and close every connection.
+     */
+    public void close()
+    {
+        mThread.interrupt();
+        mSelector.wakeup();
+    }
+
+    /**
+     * Selector thread: accept the clients, read their frames and write the
+     * frames sent to them.
+     */
+    private void run()
+    {
+        try
+        {
+            while (! Thread.currentThread().isInterrupted())
+            {
+                Connection writer;
+
+                while ((writer = mWriters.poll()) != null)
+                {
+                    writer.watchWrites();
+                }
+
+                mSelector.select();
+
+                for (SelectionKey key : mSelector.selectedKeys())
+                {
+                    if (! key.isValid())
+                    {
+                        continue;
+                    }
+
+                    if (key.isAcceptable())
+                    {
+                        accept();
+                        continue;
+                    }
+
+                    Connection connection = (Connection) key.attachment();
+
+                    try
+                    {
+                        if (key.isReadable())
+                        {
+                            connection.read();
+                        }
+
+                        if (key.isValid() && key.isWritable())
+                        {
+                            connection.write();
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        connection.close();
+                    }
+                }
+
+                mSelector.selectedKeys().clear();
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("Error: socket server stopped: " + e);
+        }
+
+        for (SelectionKey key : mSelector.keys())
+        {
+            if (key.attachment() instanceof Connection)
+            {
+                ((Connection) key.attachment()).close();
+            }
+        }
+
+        try
+        {
+            mServerChannel.close();
+            mSelector.close();
+        }
+        catch (IOException ignored)
+        {
+        }
+    }
+
+    private void accept() throws IOException
+    {
+        SocketChannel channel = mServerChannel.accept();
+
+        if (channel == null)
+        {
+            return ;
+        }
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection(channel);
+        connection.mKey = channel.register(mSelector, SelectionKey.OP_READ, connection);
+    }
+
+    /**
+     * Worker: run the call (a frame without its length) and send its result.
+     */
+    private void call(Connection connection, byte[] frame)
+    {
+        int id = 0;
+
+        try
+        {
+            DataInputStream in = new SocketLinker.FrameInput(frame);
+            byte type = in.readByte();
+            id = in.readInt();
+            connection.send(SocketLinker.frame(SocketLinker.RESULT, id,
+                        out -> call(connection, type, in, out)));
+        }
+        catch (Exception e)
+        {
+            String error = e.getMessage() != null ? e.getMessage() : e.toString();
+            Linker.RateLimitException limit = Linker.RateLimitException.find(e);
+
+            try
+            {
+                connection.send(limit != null 
+                        ? SocketLinker.frame(SocketLinker.LIMITED, id,
+                            out -> out.writeLong(limit.getRetryAfter()))
+                        : SocketLinker.frame(SocketLinker.ERROR, id,
+                            out -> Linker.Message.writeString(out, error)));
+            }
+            catch (Exception ignored)
+            {
+                // Connection closed.
+            }
+        }
+    }
+
+    /**
+     * Run the call of this type with the arguments read from in, and write
+     * its result to out.
+     */
+    private void call(Connection connection, byte type, DataInputStream in,
+            DataOutputStream out) throws IOException
+    {
+        String room = Linker.Message.readString(in);
+
+        switch (type)
+        {
+            case SocketLinker.ADD_MESSAGE:
+                out.writeLong(mLinker.addMessage(room, Linker.Message.readString(in),
+                            Linker.Message.readString(in)));
+                break;
+
+            case SocketLinker.ADD_MESSAGES:
+                mLinker.addMessages(room, Linker.Message.readString(in),
+                        SocketLinker.readStrings(in));
+                break;
+
+            case SocketLinker.CONNECT:
+                out.writeBoolean(connection.connect(room, Linker.Message.readString(in),
+                            in.readInt()));
+                break;
+
+            case SocketLinker.DISCONNECT:
+                connection.disconnect(room, Linker.Message.readString(in));
+                break;
+
+            case SocketLinker.RENEW_LEASE:
+                out.writeLong(mLinker.renewLease(room, Linker.Message.readString(in)));
+                break;
+
+            case SocketLinker.GET_CLIENT_NAMES:
+                SocketLinker.writeStrings(out, mLinker.getClientNames(room));
+                break;
+
+            case SocketLinker.GET_PRESENCE:
+                mLinker.getPresence(room, in.readLong()).write(out);
+                break;
+
+            case SocketLinker.GET_CLIENT_MESSAGES:
+                Linker.Message.writeAll(out, mLinker.getClientMessages(room));
+                break;
+
+            case SocketLinker.GET_LAST_MESSAGES:
+                mLinker.getLastMessages(room, in.readInt()).write(out);
+                break;
+
+            case SocketLinker.GET_MESSAGES_BEFORE:
+                mLinker.getMessagesBefore(room, in.readLong(), in.readInt()).write(out);
+                break;
+
+            case SocketLinker.GET_MESSAGES_AFTER:
+                mLinker.getMessagesAfter(room, in.readLong(), in.readInt()).write(out);
+                break;
+
+            case SocketLinker.SEARCH:
+                mLinker.search(room, Linker.Message.readString(in),
+                        in.readBoolean() ? Linker.Message.readString(in) : null,
+                        in.readLong(), in.readLong(), in.readInt(), in.readLong()).write(out);
+                break;
+
+            default:
+                throw new IOException("Unknown call " + type + ".");
+        }
+    }
+
+
+    /**
+     * A client socket, and the users connected through it.
+     */
+    private class Connection
+    {
+        private final SocketChannel mChannel;
+        private SelectionKey mKey;
+        // Selector thread only.
+        private ByteBuffer mInput;
+        private final ConcurrentLinkedQueue<ByteBuffer> mOutput;
+        private final AtomicLong mPendingBytes;
+        // The users connected through this socket, by id.
+        private final Map<Integer, Delivery> mUsers;
+        private volatile boolean mIsClosed;
+
+        private Connection(SocketChannel channel)
+        {
+            mChannel = channel;
+            mInput = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            mOutput = new ConcurrentLinkedQueue<>();
+            mPendingBytes = new AtomicLong();
+            mUsers = new ConcurrentHashMap<>();
+            mIsClosed = false;
+        }
+
+        /**
+         * Read what is available, and run every complete call.
+         */
+        private void read() throws IOException
+        {
+            if (mChannel.read(mInput) < 0)
+            {
+                close();
+                return ;
+            }
+
+            mInput.flip();
+
+            while (mInput.remaining() >= 4)
+            {
+                int length = mInput.getInt(mInput.position());
+
+                if (length < 5 || length > SocketLinker.MAX_FRAME_SIZE)
+                {
+                    throw new IOException("Malformed frame.");
+                }
+
+                if (mInput.remaining() < 4 + length)
+                {
+                    if (mInput.capacity() < 4 + length)
+                    {
+                        // Make room for the whole frame.
+                        ByteBuffer input = ByteBuffer.allocate(4 + length);
+                        input.put(mInput);
+                        input.flip();
+                        mInput = input;
+                    }
+
+                    break;
+                }
+
+                byte[] frame = new byte[length];
+                mInput.position(mInput.position() + 4);
+                mInput.get(frame);
+                mWorkers.execute(() -> call(this, frame));
+            }
+
+            mInput.compact();
+        }
+
+        /**
+         * Write the frames to send until the socket cannot take more.
+         */
+        private void write() throws IOException
+        {
+            ByteBuffer frame;
+
+            while ((frame = mOutput.peek()) != null)
+            {
+                mChannel.write(frame);
+
+                if (frame.hasRemaining())
+                {
+                    return ;
+                }
+
+                mOutput.poll();
+                mPendingBytes.addAndGet(-frame.limit());
+            }
+
+            // Everything sent (until "watchWrites" is called again).
+            mKey.interestOps(SelectionKey.OP_READ);
+        }
+
+        /**
+         * Send the frame, without waiting (from any thread).
+         */
+        private void send(ByteBuffer frame) throws RemoteException
+        {
+            if (mIsClosed)
+            {
+                throw new RemoteException("Connection closed.");
+            }
+
+            if (mPendingBytes.addAndGet(frame.limit()) > MAX_PENDING_BYTES)
+            {
+                mPendingBytes.addAndGet(-frame.limit());
+                throw new RemoteException("Connection too slow.");
+            }
+
+            mOutput.add(frame);
+            mWriters.add(this);
+            mSelector.wakeup();
+        }
+
+        /**
+         * Selector thread: write as soon as possible.
+         */
+        private void watchWrites()
+        {
+            if (mKey.isValid() && ! mOutput.isEmpty())
+            {
+                mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        private boolean connect(String room, String name, int id) throws RemoteException
+        {
+            Delivery delivery = new Delivery(this, id, room, name);
+            mUsers.put(id, delivery);
+
+            if (! mLinker.connect(room, name, delivery))
+            {
+                mUsers.remove(id);
+                return false;
+            }
+
+            return true;
+        }
+
+        private void disconnect(String room, String name) throws RemoteException
+        {
+            mLinker.disconnect(room, name);
+            mUsers.values().removeIf(d -> d.mRoom.equals(room) && d.mName.equals(name));
+        }
+
+        /**
+         * Selector thread: close the socket, and disconnect its users.
+         */
+        private void close()
+        {
+            if (mIsClosed)
+            {
+                return ;
+            }
+
+            mIsClosed = true;
+            mKey.cancel();
+
+            try
+            {
+                mChannel.close();
+            }
+            catch (IOException ignored)
+            {
+            }
+
+            for (Delivery delivery : mUsers.values())
+            {
+                mWorkers.execute(
+                        () ->
+                        {
+                            try
+                            {
+                                mLinker.disconnect(delivery.mRoom, delivery.mName, delivery);
+                            }
+                            catch (Exception e)
+                            {
+                                System.err.println("Error: cannot disconnect \""
+                                        + delivery.mName + "\": " + e);
+                            }
+                        }
+                );
+            }
+        }
+    }
+
+
+    /**
+     * The "Client" given to the linker for a user connected through a
+     * socket: its messages are sent as frames on the socket.
+     */
+    private static class Delivery implements Client
+    {
+        private final Connection mConnection;
+        // Id of the user on the connection.
+        private final int mId;
+        private final String mRoom;
+        private final String mName;
+
+        private Delivery(Connection connection, int id, String room, String name)
+        {
+            mConnection = connection;
+            mId = id;
+            mRoom = room;
+            mName = name;
+        }
+
+        @Override
+        public void writeMessage(Linker.Message message) throws RemoteException
+        {
+            send(SocketLinker.WRITE_MESSAGE,
+                    out ->
+                    {
+                        out.writeLong(message.getSequence());
+                        Linker.Message.writeVarLong(out,
+                                message.getSequence() - message.getFirstSequence());
+                        out.writeLong(message.getTimestamp());
+                        Linker.Message.writeString(out, message.getSender());
+                        Linker.Message.writeString(out, message.getContent());
+                    }
+            );
+        }
+
+        @Override
+        public void writeMessages(ArrayList<Linker.Message> messages) throws RemoteException
+        {
+            send(SocketLinker.WRITE_MESSAGES, out -> Linker.Message.writeAll(out, messages));
+        }
+
+        @Override
+        public void notifyDisconnected(String name) throws RemoteException
+        {
+            send(SocketLinker.NOTIFY_DISCONNECTED, out -> Linker.Message.writeString(out, name));
+        }
+
+        @Override
+        public void notifyConnected(String name) throws RemoteException
+        {
+            send(SocketLinker.NOTIFY_CONNECTED, out -> Linker.Message.writeString(out, name));
+        }
+
+        private void send(byte type, SocketLinker.Content content) throws RemoteException
+        {
+            try
+            {
+                mConnection.send(SocketLinker.frame(type, mId, content));
+            }
+            catch (IOException e)
+            {
+                throw new RemoteException("Cannot send to \"" + mName + "\".", e);
+            }
+        }
+    }
+}